@@ -0,0 +1,77 @@
+package com.button.teamprojectebackport;
+
+import moze_intel.projecte.api.ItemInfo;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Knowledge checks and changes through {@link TeamKnowledgeProvider}, the path transmutation tables hit every tick
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KnowledgeBenchmark {
+
+    @Param({"0", "1000", "50000"})
+    public int knownItems;
+
+    @Param({"1", "50"})
+    public int members;
+
+    private TeamKnowledgeProvider provider;
+    private List<ItemInfo> known;
+    private List<ItemInfo> unknown;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        TPBenchmarks.install();
+        //With no known items the hit benchmark still needs something to look up, it measures a miss then
+        known = TPBenchmarks.items(Math.max(knownItems, 1));
+        unknown = TPBenchmarks.unknownItems(1024);
+        List<UUID> players = TPBenchmarks.createTeams(1, members, known.subList(0, knownItems));
+        //Look the team up through a member, like a provider of anyone but the owner would
+        provider = new TeamKnowledgeProvider(players.get(players.size() - 1));
+    }
+
+    @TearDown(Level.Iteration)
+    public void clearSync() {
+        //Nothing flushes the journals without a server tick
+        TPSync.clear();
+    }
+
+    @Benchmark
+    public boolean hasKnowledgeHit() {
+        next = (next + 1) % known.size();
+        return provider.hasKnowledge(known.get(next));
+    }
+
+    @Benchmark
+    public boolean hasKnowledgeMiss() {
+        next = (next + 1) % unknown.size();
+        return provider.hasKnowledge(unknown.get(next));
+    }
+
+    @Benchmark
+    public void addAndRemoveKnowledge(Blackhole blackhole) {
+        //Removing again keeps the set at the same size for every invocation
+        next = (next + 1) % unknown.size();
+        ItemInfo info = unknown.get(next);
+        blackhole.consume(provider.addKnowledge(info));
+        blackhole.consume(provider.removeKnowledge(info));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Set<ItemInfo> getKnowledge() {
+        return provider.getKnowledge();
+    }
+}
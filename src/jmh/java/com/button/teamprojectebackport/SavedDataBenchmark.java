@@ -0,0 +1,97 @@
+package com.button.teamprojectebackport;
+
+import moze_intel.projecte.api.ItemInfo;
+import net.minecraft.nbt.CompoundNBT;
+import net.minecraft.nbt.CompressedStreamTools;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding, writing and reading back the manifest and the team shards, what a world save and a server start cost
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SavedDataBenchmark {
+
+    @Param({"1000", "10000"})
+    public int teams;
+
+    @Param({"1", "10", "50"})
+    public int members;
+
+    @Param({"0", "1000"})
+    public int knownItems;
+
+    private TPSavedData data;
+    private CompoundNBT manifest;
+    private File directory;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        data = TPBenchmarks.install();
+        List<ItemInfo> knowledge = TPBenchmarks.items(knownItems);
+        TPBenchmarks.createTeams(teams, members, knowledge);
+        manifest = data.save(new CompoundNBT());
+        directory = Files.createTempDirectory("teamprojectebackport").toFile();
+        for (TPTeam team : data.TEAMS.values())
+            TPSaveWorker.writeAtomically(team.save(), new File(directory, team.getUUID() + ".dat"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    @Benchmark
+    public CompoundNBT saveManifest() {
+        return data.save(new CompoundNBT());
+    }
+
+    @Benchmark
+    public void snapshotTeams(Blackhole blackhole) {
+        //The part of a save that runs on the server thread when every team changed
+        List<TPTeam.Snapshot> snapshots = new ArrayList<>(teams);
+        for (TPTeam team : data.TEAMS.values()) {
+            team.markDirty();
+            snapshots.add(team.snapshotIfDirty());
+        }
+        blackhole.consume(snapshots);
+    }
+
+    @Benchmark
+    public void writeShards() throws IOException {
+        for (TPTeam team : data.TEAMS.values())
+            TPSaveWorker.writeAtomically(team.save(), new File(directory, team.getUUID() + ".dat"));
+    }
+
+    @Benchmark
+    public TPSavedData loadManifest() {
+        return new TPSavedData(manifest);
+    }
+
+    @Benchmark
+    public void loadShards(Blackhole blackhole) throws IOException {
+        for (TPTeam team : data.TEAMS.values()) {
+            CompoundNBT tag = CompressedStreamTools.readCompressed(new File(directory, team.getUUID() + ".dat"));
+            TPTeam loaded = new TPTeam(team.getUUID(), team.getOwner());
+            loaded.loadData(tag);
+            blackhole.consume(loaded);
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+package com.button.teamprojectebackport;
+
+import moze_intel.projecte.api.ItemInfo;
+import net.minecraft.item.Item;
+import net.minecraft.item.Items;
+import net.minecraft.nbt.CompoundNBT;
+import net.minecraft.util.SharedConstants;
+import net.minecraft.util.registry.Bootstrap;
+import net.minecraftforge.fml.common.ObfuscationReflectionHelper;
+import net.minecraftforge.registries.ForgeRegistries;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Shared setup for the benchmarks, they run against a team store that isn't attached to a server
+ */
+public class TPBenchmarks {
+
+    private static boolean bootstrapped;
+
+    public static synchronized void bootstrap() {
+        if (bootstrapped)
+            return;
+        SharedConstants.tryDetectVersion();
+        Bootstrap.bootStrap();
+        bootstrapped = true;
+    }
+
+    public static TPSavedData install() {
+        bootstrap();
+        TPSavedData data = new TPSavedData();
+        //There is no server to load the store from, so put it where getData looks
+        ObfuscationReflectionHelper.setPrivateValue(TPSavedData.class, null, data, "DATA");
+        TPSync.clear();
+        return data;
+    }
+
+    /**
+     * Every registered item first, then enough items with NBT to reach the count, like enchanted gear players learn
+     */
+    public static List<ItemInfo> items(int count) {
+        List<ItemInfo> items = new ArrayList<>(count);
+        for (Item item : ForgeRegistries.ITEMS.getValues()) {
+            if (items.size() == count)
+                return items;
+            items.add(ItemInfo.fromItem(item));
+        }
+        for (int i = 0; items.size() < count; i++) {
+            CompoundNBT nbt = new CompoundNBT();
+            nbt.putInt("benchmark", i);
+            items.add(ItemInfo.fromItem(Items.DIAMOND_SWORD, nbt));
+        }
+        return items;
+    }
+
+    //Items that no team knows, so lookups miss
+    public static List<ItemInfo> unknownItems(int count) {
+        List<ItemInfo> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            CompoundNBT nbt = new CompoundNBT();
+            nbt.putInt("unknown", i);
+            items.add(ItemInfo.fromItem(Items.DIAMOND_PICKAXE, nbt));
+        }
+        return items;
+    }
+
+    /**
+     * Creates the teams with their members and knowledge, returns every player in them
+     */
+    public static List<UUID> createTeams(int teams, int members, List<ItemInfo> knowledge) {
+        List<UUID> players = new ArrayList<>(teams * members);
+        for (int i = 0; i < teams; i++) {
+            UUID owner = UUID.randomUUID();
+            TPTeam team = TPTeam.createTeam(owner);
+            players.add(owner);
+            for (int j = 1; j < members; j++) {
+                UUID member = UUID.randomUUID();
+                team.addMember(member);
+                players.add(member);
+            }
+            team.addAllKnowledge(knowledge);
+            team.addEmc(i * 1000L);
+        }
+        return players;
+    }
+}
@@ -0,0 +1,42 @@
+package com.button.teamprojectebackport;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolving a player's team, done by every provider and command
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TeamLookupBenchmark {
+
+    @Param({"1000", "10000"})
+    public int teams;
+
+    @Param({"1", "50"})
+    public int members;
+
+    private List<UUID> players;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        TPBenchmarks.install();
+        players = TPBenchmarks.createTeams(teams, members, Collections.emptyList());
+        Collections.shuffle(players);
+    }
+
+    @Benchmark
+    public TPTeam getTeamByMember() {
+        next = (next + 1) % players.size();
+        return TPTeam.getTeamByMember(players.get(next));
+    }
+}
@@ -0,0 +1,78 @@
+package com.button.teamprojectebackport;
+
+import moze_intel.projecte.network.packets.to_client.knowledge.KnowledgeSyncPKT;
+import net.minecraft.nbt.CompoundNBT;
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.network.PacketBuffer;
+import net.minecraftforge.fml.network.NetworkEvent;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.function.Supplier;
+
+/**
+ * One piece of a compressed full knowledge sync, the client puts the pieces back together
+ * and applies them like ProjectE's {@link KnowledgeSyncPKT}
+ */
+public class KnowledgeChunkPKT {
+
+    //The transfer the client is currently assembling, only touched on the client thread
+    private static int assemblyId;
+    private static byte[] assembly;
+
+    private final int syncId;
+    private final int totalLength;
+    private final int offset;
+    private final byte[] data;
+
+    public KnowledgeChunkPKT(int syncId, int totalLength, int offset, byte[] data) {
+        this.syncId = syncId;
+        this.totalLength = totalLength;
+        this.offset = offset;
+        this.data = data;
+    }
+
+    public void encode(PacketBuffer buffer) {
+        buffer.writeVarInt(syncId);
+        buffer.writeVarInt(totalLength);
+        buffer.writeVarInt(offset);
+        buffer.writeByteArray(data);
+    }
+
+    public static KnowledgeChunkPKT decode(PacketBuffer buffer) {
+        return new KnowledgeChunkPKT(buffer.readVarInt(), buffer.readVarInt(), buffer.readVarInt(), buffer.readByteArray());
+    }
+
+    public static void handle(KnowledgeChunkPKT packet, Supplier<NetworkEvent.Context> context) {
+        NetworkEvent.Context ctx = context.get();
+        ctx.enqueueWork(() -> packet.receive(ctx));
+        ctx.setPacketHandled(true);
+    }
+
+    private void receive(NetworkEvent.Context context) {
+        if (offset == 0) {
+            assemblyId = syncId;
+            assembly = new byte[totalLength];
+        } else if (assembly == null || assemblyId != syncId) {
+            //Left over from a transfer the server replaced with a newer one
+            return;
+        }
+        if (offset + data.length > assembly.length) {
+            assembly = null;
+            return;
+        }
+        System.arraycopy(data, 0, assembly, offset, data.length);
+        if (offset + data.length < assembly.length)
+            return;
+        byte[] bytes = assembly;
+        assembly = null;
+        CompoundNBT properties;
+        try {
+            properties = CompressedStreamTools.readCompressed(new ByteArrayInputStream(bytes));
+        } catch (IOException e) {
+            TeamProjectEBackport.LOGGER.error("Could not read team knowledge", e);
+            return;
+        }
+        new KnowledgeSyncPKT(properties).handle(context);
+    }
+}
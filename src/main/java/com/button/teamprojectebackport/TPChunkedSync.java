@@ -0,0 +1,106 @@
+package com.button.teamprojectebackport;
+
+import net.minecraft.entity.player.ServerPlayerEntity;
+import net.minecraft.nbt.CompoundNBT;
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraftforge.fml.server.ServerLifecycleHooks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Sends full knowledge syncs compressed and in pieces, spread over ticks so logins after a restart don't all land in one tick
+ */
+public class TPChunkedSync {
+
+    private static final int CHUNK_SIZE = 32 * 1024;
+
+    //In the order they were queued, a newer sync for the same player replaces the older one
+    private static final Map<UUID, Transfer> TRANSFERS = new LinkedHashMap<>();
+    private static int nextId;
+
+    public static void queue(ServerPlayerEntity player, CompoundNBT properties) {
+        UUID uuid = TeamProjectEBackport.getPlayerUUID(player);
+        TRANSFERS.remove(uuid);
+        TRANSFERS.put(uuid, new Transfer(player, properties, nextId++));
+    }
+
+    /**
+     * Whether the player is still waiting for a full sync, anything sent before it completes would be overwritten by it
+     */
+    public static boolean isPending(UUID player) {
+        return TRANSFERS.containsKey(player);
+    }
+
+    public static void onServerTick() {
+        if (TRANSFERS.isEmpty())
+            return;
+        int budget = TPConfig.FULL_SYNC_BYTES_PER_TICK.get();
+        Iterator<Map.Entry<UUID, Transfer>> iterator = TRANSFERS.entrySet().iterator();
+        while (budget > 0 && iterator.hasNext()) {
+            Map.Entry<UUID, Transfer> entry = iterator.next();
+            Transfer transfer = entry.getValue();
+            if (ServerLifecycleHooks.getCurrentServer().getPlayerList().getPlayer(entry.getKey()) != transfer.player) {
+                iterator.remove();
+                continue;
+            }
+            budget -= transfer.send(budget);
+            if (transfer.isDone()) {
+                iterator.remove();
+                TPSync.fullSyncCompleted(entry.getKey());
+            }
+        }
+    }
+
+    public static void clear() {
+        TRANSFERS.clear();
+    }
+
+    private static class Transfer {
+
+        private final ServerPlayerEntity player;
+        private final int syncId;
+        private CompoundNBT properties;
+        private byte[] data;
+        private int offset;
+
+        private Transfer(ServerPlayerEntity player, CompoundNBT properties, int syncId) {
+            this.player = player;
+            this.properties = properties;
+            this.syncId = syncId;
+        }
+
+        //Sends at least one piece and stops once the budget is used up, returns how many bytes went out
+        private int send(int budget) {
+            if (data == null) {
+                //Compressed once it is this transfer's turn, so the work is spread over ticks as well
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try {
+                    CompressedStreamTools.writeCompressed(properties, out);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                data = out.toByteArray();
+                properties = null;
+            }
+            int sent = 0;
+            do {
+                int length = Math.min(CHUNK_SIZE, data.length - offset);
+                TPNetwork.sendTo(new KnowledgeChunkPKT(syncId, data.length, offset, Arrays.copyOfRange(data, offset, offset + length)), player);
+                TPMetrics.count(TPMetrics.SyncType.KNOWLEDGE, length);
+                offset += length;
+                sent += length;
+            } while (sent < budget && !isDone());
+            return sent;
+        }
+
+        private boolean isDone() {
+            return data != null && offset >= data.length;
+        }
+    }
+}
@@ -4,6 +4,7 @@ import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
 import com.mojang.brigadier.Command;
 import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.arguments.StringArgumentType;
 import com.mojang.brigadier.context.CommandContext;
 import com.mojang.brigadier.exceptions.CommandSyntaxException;
 import com.mojang.brigadier.suggestion.Suggestions;
@@ -64,6 +65,17 @@ public class TPCommand {
                         .then(Commands.argument("team", UUIDArgument.uuid())
                                 .suggests(TPCommand::createSuggestionsForInvitation)
                                 .executes(TPCommand::decline)))
+                .then(Commands.literal("export")
+                        .requires(s -> s.hasPermission(4))
+                        .then(Commands.argument("name", StringArgumentType.word())
+                                .executes(TPCommand::exportTeams)))
+                .then(Commands.literal("import")
+                        .requires(s -> s.hasPermission(4))
+                        .then(Commands.argument("name", StringArgumentType.word())
+                                .executes(TPCommand::importTeams)))
+                .then(Commands.literal("stats")
+                        .requires(s -> s.hasPermission(2))
+                        .executes(TPCommand::stats))
         );
     }
 
@@ -80,7 +92,7 @@ public class TPCommand {
         ServerPlayerEntity newOwner = EntityArgument.getPlayer(context, "member");
         UUID newOwnerUUID = TeamProjectEBackport.getPlayerUUID(newOwner);
 
-        if(!team.getAll().contains(newOwnerUUID)){
+        if(!team.contains(newOwnerUUID)){
             context.getSource().sendFailure(new TranslationTextComponent("commands.teamprojectebackport.transfer_ownership.not_in_team"));
             return 0;
         }
@@ -103,7 +115,7 @@ public class TPCommand {
             return 0;
 
         List<ServerPlayerEntity> kick = EntityArgument.getPlayers(context, "members").stream()
-                .filter(p -> team.getMembers().contains(TeamProjectEBackport.getPlayerUUID(p)))
+                .filter(p -> team.isMember(TeamProjectEBackport.getPlayerUUID(p)))
                 .collect(Collectors.toList());
         kick.forEach(p -> {
             team.removeMember(TeamProjectEBackport.getPlayerUUID(p));
@@ -182,8 +194,14 @@ public class TPCommand {
         }
         TPTeam originalTeam = TPTeam.getTeamByMember(TeamProjectEBackport.getPlayerUUID(player));
         if(originalTeam != null){
+            boolean wasOwner = originalTeam.getOwner().equals(TeamProjectEBackport.getPlayerUUID(player));
             team.addMemberWithKnowledge(originalTeam, player);
             originalTeam.removeMember(TeamProjectEBackport.getPlayerUUID(player));
+            //Whoever stays behind just lost the knowledge and emc that moved with the owner
+            if(wasOwner) {
+                TPSync.requestFullSync(originalTeam);
+                TPSync.emcChanged(originalTeam);
+            }
         } else
             team.addMember(TeamProjectEBackport.getPlayerUUID(player));
 
@@ -191,12 +209,32 @@ public class TPCommand {
 
         context.getSource().sendSuccess(new TranslationTextComponent("commands.teamprojectebackport.invite.accepted").withStyle(TextFormatting.GREEN), false);
         ITextComponent component = new TranslationTextComponent("commands.teamprojectebackport.joined_team", player.getDisplayName()).withStyle(TextFormatting.GREEN);
-        TeamProjectEBackport.getAllOnline(team.getAll()).forEach(p -> p.sendMessage(component, Util.NIL_UUID));
+        team.getOnline().forEach(p -> p.sendMessage(component, Util.NIL_UUID));
 
         return Command.SINGLE_SUCCESS;
     }
 
 
+    private static int exportTeams(CommandContext<CommandSource> context) {
+        if(!TPTransfer.export(context.getSource(), StringArgumentType.getString(context, "name")))
+            return 0;
+        context.getSource().sendSuccess(new TranslationTextComponent("commands.teamprojectebackport.export.started"), true);
+        return Command.SINGLE_SUCCESS;
+    }
+
+    private static int importTeams(CommandContext<CommandSource> context) {
+        if(!TPTransfer.importTeams(context.getSource(), StringArgumentType.getString(context, "name")))
+            return 0;
+        context.getSource().sendSuccess(new TranslationTextComponent("commands.teamprojectebackport.import.started"), true);
+        return Command.SINGLE_SUCCESS;
+    }
+
+    private static int stats(CommandContext<CommandSource> context) {
+        for (String line : TPMetrics.report())
+            context.getSource().sendSuccess(new StringTextComponent(line), false);
+        return Command.SINGLE_SUCCESS;
+    }
+
     private static int decline(CommandContext<CommandSource> context) throws CommandSyntaxException {
         ServerPlayerEntity player = checkPlayer(context);
         UUID uuid = UUIDArgument.getUuid(context, "team");
@@ -232,7 +270,7 @@ public class TPCommand {
 
         Collection<ServerPlayerEntity> players =
                 EntityArgument.getPlayers(context, "players").stream()
-                        .filter(p -> !team.getAll().contains(TeamProjectEBackport.getPlayerUUID(p)))
+                        .filter(p -> !team.contains(TeamProjectEBackport.getPlayerUUID(p)))
                         .collect(Collectors.toList());
 
         ITextComponent component = new TranslationTextComponent("commands.teamprojectebackport.invitation",
@@ -0,0 +1,61 @@
+package com.button.teamprojectebackport;
+
+import net.minecraftforge.common.ForgeConfigSpec;
+
+public class TPConfig {
+
+    public static final ForgeConfigSpec SPEC;
+
+    public static final ForgeConfigSpec.BooleanValue KNOWLEDGE_EVENTS_ONLINE_ONLY;
+
+    public static final ForgeConfigSpec.IntValue TEAM_IDLE_MINUTES;
+
+    public static final ForgeConfigSpec.IntValue OFFLINE_PROVIDER_CACHE_SIZE;
+
+    public static final ForgeConfigSpec.IntValue OFFLINE_PROVIDER_TTL_MINUTES;
+
+    public static final ForgeConfigSpec.IntValue PERSISTENT_INFO_CACHE_SIZE;
+
+    public static final ForgeConfigSpec.IntValue METRICS_LOG_MINUTES;
+
+    public static final ForgeConfigSpec.IntValue FULL_SYNC_BYTES_PER_TICK;
+
+    static {
+        ForgeConfigSpec.Builder builder = new ForgeConfigSpec.Builder();
+
+        builder.push("events");
+        KNOWLEDGE_EVENTS_ONLINE_ONLY = builder
+                .comment("Only post PlayerKnowledgeChangeEvent for team members that are online")
+                .define("knowledgeEventsOnlineOnly", false);
+        builder.pop();
+
+        builder.push("storage");
+        TEAM_IDLE_MINUTES = builder
+                .comment("Minutes a team without online members stays in memory after its last use, 0 keeps every team loaded")
+                .defineInRange("teamIdleMinutes", 30, 0, 10080);
+        OFFLINE_PROVIDER_CACHE_SIZE = builder
+                .comment("How many offline players' knowledge providers are kept for mods that look up offline players")
+                .defineInRange("offlineProviderCacheSize", 512, 1, 1000000);
+        OFFLINE_PROVIDER_TTL_MINUTES = builder
+                .comment("Minutes an offline player's knowledge provider is kept after its last use")
+                .defineInRange("offlineProviderTtlMinutes", 10, 1, 10080);
+        PERSISTENT_INFO_CACHE_SIZE = builder
+                .comment("How many items with NBT remember their cleaned up form for knowledge lookups")
+                .defineInRange("persistentInfoCacheSize", 4096, 1, 1000000);
+        builder.pop();
+
+        builder.push("network");
+        FULL_SYNC_BYTES_PER_TICK = builder
+                .comment("Compressed bytes of full knowledge syncs sent per tick, the rest waits for the next tick. Only used for clients that have this mod")
+                .defineInRange("fullSyncBytesPerTick", 262144, 32768, Integer.MAX_VALUE);
+        builder.pop();
+
+        builder.push("metrics");
+        METRICS_LOG_MINUTES = builder
+                .comment("Minutes between logging the runtime metrics also shown by /team_projecte stats, 0 disables it")
+                .defineInRange("logIntervalMinutes", 60, 0, 10080);
+        builder.pop();
+
+        SPEC = builder.build();
+    }
+}
@@ -0,0 +1,100 @@
+package com.button.teamprojectebackport;
+
+import java.math.BigInteger;
+
+/**
+ * EMC balance that is kept as a long and only switches to a BigInteger once it no longer fits
+ */
+public class TPEmc {
+
+    private long value;
+    //Only set while the balance doesn't fit in a long
+    private BigInteger big;
+    //Last value handed out by get(), so repeated reads don't allocate
+    private BigInteger cached = BigInteger.ZERO;
+
+    public BigInteger get() {
+        if (big != null)
+            return big;
+        if (cached == null)
+            cached = BigInteger.valueOf(value);
+        return cached;
+    }
+
+    public void set(BigInteger emc) {
+        if (emc.bitLength() < Long.SIZE) {
+            value = emc.longValue();
+            big = null;
+        } else
+            big = emc;
+        //The caller's instance is as good as any
+        cached = emc;
+    }
+
+    public void set(long emc) {
+        value = emc;
+        big = null;
+        cached = null;
+    }
+
+    public void add(long amount) {
+        if (big == null) {
+            long result = value + amount;
+            //Overflow if both operands have the same sign and the result has a different one
+            if (((value ^ result) & (amount ^ result)) >= 0) {
+                value = result;
+                cached = null;
+                return;
+            }
+        }
+        set(get().add(BigInteger.valueOf(amount)));
+    }
+
+    public void add(BigInteger amount) {
+        if (amount.bitLength() < Long.SIZE)
+            add(amount.longValue());
+        else
+            set(get().add(amount));
+    }
+
+    public void subtract(long amount) {
+        if (amount == Long.MIN_VALUE)
+            set(get().subtract(BigInteger.valueOf(amount)));
+        else
+            add(-amount);
+    }
+
+    public void subtract(BigInteger amount) {
+        if (amount.bitLength() < Long.SIZE)
+            subtract(amount.longValue());
+        else
+            set(get().subtract(amount));
+    }
+
+    public int compareTo(long amount) {
+        //A balance that doesn't fit in a long is beyond any long on its side of zero
+        if (big != null)
+            return big.signum();
+        return Long.compare(value, amount);
+    }
+
+    public int compareTo(BigInteger amount) {
+        if (big == null && amount.bitLength() < Long.SIZE)
+            return Long.compare(value, amount.longValue());
+        return get().compareTo(amount);
+    }
+
+    public boolean fitsLong() {
+        return big == null;
+    }
+
+    //Only meaningful if the balance fits in a long
+    public long longValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return big != null ? big.toString() : Long.toString(value);
+    }
+}
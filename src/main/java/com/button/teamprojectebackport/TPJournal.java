@@ -0,0 +1,344 @@
+package com.button.teamprojectebackport;
+
+import moze_intel.projecte.api.ItemInfo;
+import net.minecraft.nbt.CompoundNBT;
+import net.minecraft.nbt.CompressedStreamTools;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Append-only log of team changes between world saves, replayed on load so a crash doesn't lose them.
+ * Every save starts a new segment and deletes the older ones once the save has reached the disk.
+ * The journal's monitor is taken while a team's lock is held, so nothing may wait for a team's lock while holding it
+ */
+public class TPJournal {
+
+    private static final byte TEAM = 1;
+    private static final byte TEAM_REMOVED = 2;
+    private static final byte MEMBER_ADDED = 3;
+    private static final byte MEMBER_REMOVED = 4;
+    private static final byte OWNER = 5;
+    private static final byte EMC = 6;
+    private static final byte EMC_BIG = 7;
+    private static final byte LEARNED = 8;
+    private static final byte FORGOTTEN = 9;
+    private static final byte CLEARED = 10;
+    private static final byte FULL_KNOWLEDGE = 11;
+
+    private static final Pattern SEGMENT = Pattern.compile("journal-(\\d+)\\.bin");
+
+    //Records of the current tick, handed to the save worker at the end of it. Reused so records don't allocate
+    private static final RecordBuffer BUFFER = new RecordBuffer();
+    private static final DataOutputStream OUT = new DataOutputStream(BUFFER);
+    private static int recordStart;
+    private static File DIRECTORY;
+    private static int SEGMENT_ID;
+    private static volatile boolean ACTIVE;
+
+    public static void teamAdded(TPTeam team) {
+        if (!ACTIVE)
+            return;
+        //Read before entering the journal, the team may already be locked by someone waiting for it
+        CompoundNBT tag = team.save();
+        synchronized (TPJournal.class) {
+            try {
+                if (!begin(TEAM, team))
+                    return;
+                CompressedStreamTools.write(tag, OUT);
+                end();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    public static synchronized void teamRemoved(TPTeam team) {
+        try {
+            if (begin(TEAM_REMOVED, team))
+                end();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static void memberAdded(TPTeam team, UUID player) {
+        appendUUID(MEMBER_ADDED, team, player);
+    }
+
+    public static void memberRemoved(TPTeam team, UUID player) {
+        appendUUID(MEMBER_REMOVED, team, player);
+    }
+
+    public static void ownerChanged(TPTeam team, UUID owner) {
+        appendUUID(OWNER, team, owner);
+    }
+
+    //Only the resulting balance is logged, so replaying a record twice is harmless
+    public static synchronized void emcChanged(TPTeam team, TPEmc emc) {
+        try {
+            if (emc.fitsLong()) {
+                if (!begin(EMC, team))
+                    return;
+                OUT.writeLong(emc.longValue());
+            } else {
+                if (!begin(EMC_BIG, team))
+                    return;
+                byte[] value = emc.get().toByteArray();
+                OUT.writeInt(value.length);
+                OUT.write(value);
+            }
+            end();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static synchronized void knowledgeChanged(TPTeam team, ItemInfo info, boolean learned) {
+        try {
+            if (!begin(learned ? LEARNED : FORGOTTEN, team))
+                return;
+            CompressedStreamTools.write(info.write(new CompoundNBT()), OUT);
+            end();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static synchronized void knowledgeCleared(TPTeam team) {
+        try {
+            if (begin(CLEARED, team))
+                end();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static synchronized void fullKnowledgeChanged(TPTeam team, boolean fullKnowledge) {
+        try {
+            if (!begin(FULL_KNOWLEDGE, team))
+                return;
+            OUT.writeBoolean(fullKnowledge);
+            end();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static synchronized void appendUUID(byte type, TPTeam team, UUID uuid) {
+        try {
+            if (!begin(type, team))
+                return;
+            writeUUID(OUT, uuid);
+            end();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //Starts a record in the buffer, false if nothing is journaled right now
+    private static boolean begin(byte type, TPTeam team) throws IOException {
+        if (!ACTIVE)
+            return false;
+        recordStart = BUFFER.size();
+        OUT.writeInt(0);
+        OUT.writeByte(type);
+        writeUUID(OUT, team.getUUID());
+        return true;
+    }
+
+    //Length first so a record torn by a crash can be recognised and skipped
+    private static void end() {
+        BUFFER.setInt(recordStart, BUFFER.size() - recordStart - Integer.BYTES);
+    }
+
+    /**
+     * Replays what is left from before the last shutdown into a store that isn't published yet, then starts a new segment
+     */
+    public static void open(TPSavedData data, File directory) {
+        List<Integer> segments = listSegments(directory);
+        int replayed = 0;
+        for (int segment : segments)
+            replayed += replay(data, getSegmentFile(directory, segment));
+        if (replayed > 0)
+            TeamProjectEBackport.LOGGER.info("Replayed {} team changes that were not saved", replayed);
+        synchronized (TPJournal.class) {
+            DIRECTORY = directory;
+            SEGMENT_ID = segments.isEmpty() ? 0 : segments.get(segments.size() - 1) + 1;
+            BUFFER.reset();
+            ACTIVE = true;
+        }
+    }
+
+    public static synchronized void close() {
+        flush();
+        ACTIVE = false;
+        DIRECTORY = null;
+    }
+
+    public static synchronized void flush() {
+        if (!ACTIVE || BUFFER.size() == 0)
+            return;
+        byte[] bytes = BUFFER.toByteArray();
+        BUFFER.reset();
+        File file = getSegmentFile(DIRECTORY, SEGMENT_ID);
+        TPSaveWorker.submit(() -> {
+            File directory = file.getParentFile();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                TeamProjectEBackport.LOGGER.error("Could not create {}", directory);
+                return;
+            }
+            try (FileOutputStream out = new FileOutputStream(file, true)) {
+                out.write(bytes);
+            } catch (IOException e) {
+                TeamProjectEBackport.LOGGER.error("Could not write {}", file, e);
+            }
+        });
+    }
+
+    /**
+     * Moves on to a new segment, returns it. Everything in the older segments is part of a save taken after this
+     */
+    public static synchronized int rotate() {
+        flush();
+        return ++SEGMENT_ID;
+    }
+
+    /**
+     * Drops the segments before the given one, only call this on the save worker once the save that rotated to it is written
+     */
+    public static void compact(File directory, int segment) {
+        for (int old : listSegments(directory)) {
+            if (old >= segment)
+                break;
+            File file = getSegmentFile(directory, old);
+            if (!file.delete() && file.exists())
+                TeamProjectEBackport.LOGGER.error("Could not delete {}", file);
+        }
+    }
+
+    private static int replay(TPSavedData data, File file) {
+        int replayed = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] record = new byte[length];
+                try {
+                    in.readFully(record);
+                } catch (EOFException e) {
+                    TeamProjectEBackport.LOGGER.warn("Ignoring a partly written team change at the end of {}", file);
+                    break;
+                }
+                apply(data, new DataInputStream(new ByteArrayInputStream(record)));
+                replayed++;
+            }
+        } catch (IOException e) {
+            TeamProjectEBackport.LOGGER.error("Could not replay {}", file, e);
+        }
+        return replayed;
+    }
+
+    //Goes straight to the team's state, the store isn't published yet and the changes must not be journaled again
+    private static void apply(TPSavedData data, DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        UUID teamUUID = readUUID(in);
+        if (type == TEAM) {
+            CompoundNBT tag = CompressedStreamTools.read(in);
+            if (data.TEAMS.containsKey(teamUUID))
+                return;
+            TPTeam team = new TPTeam(tag);
+            team.setDirty(true);
+            data.replayTeam(team);
+            return;
+        }
+        TPTeam team = data.TEAMS.get(teamUUID);
+        if (team == null)
+            return;
+        switch (type) {
+            case TEAM_REMOVED:
+                data.replayRemoval(team);
+                break;
+            case MEMBER_ADDED:
+                team.replayMember(data, readUUID(in), true);
+                break;
+            case MEMBER_REMOVED:
+                team.replayMember(data, readUUID(in), false);
+                break;
+            case OWNER:
+                team.replayOwner(data, readUUID(in));
+                break;
+            case EMC:
+                team.replayEmc(data, BigInteger.valueOf(in.readLong()));
+                break;
+            case EMC_BIG: {
+                byte[] value = new byte[in.readInt()];
+                in.readFully(value);
+                team.replayEmc(data, new BigInteger(value));
+                break;
+            }
+            case LEARNED:
+            case FORGOTTEN: {
+                ItemInfo info = ItemInfo.read(CompressedStreamTools.read(in));
+                if (info != null)
+                    team.replayKnowledge(data, info, type == LEARNED);
+                break;
+            }
+            case CLEARED:
+                team.replayClearKnowledge(data);
+                break;
+            case FULL_KNOWLEDGE:
+                team.replayFullKnowledge(data, in.readBoolean());
+                break;
+            default:
+                throw new IOException("Unknown team change " + type);
+        }
+    }
+
+    private static List<Integer> listSegments(File directory) {
+        List<Integer> segments = new ArrayList<>();
+        String[] names = directory.list();
+        if (names == null)
+            return segments;
+        for (String name : names) {
+            Matcher matcher = SEGMENT.matcher(name);
+            if (matcher.matches())
+                segments.add(Integer.parseInt(matcher.group(1)));
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    private static File getSegmentFile(File directory, int segment) {
+        return new File(directory, "journal-" + segment + ".bin");
+    }
+
+    private static void writeUUID(DataOutput out, UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private static UUID readUUID(DataInput in) throws IOException {
+        return new UUID(in.readLong(), in.readLong());
+    }
+
+    //Lets a record's length be filled in once the record is written
+    private static class RecordBuffer extends ByteArrayOutputStream {
+
+        private void setInt(int position, int value) {
+            buf[position] = (byte) (value >>> 24);
+            buf[position + 1] = (byte) (value >>> 16);
+            buf[position + 2] = (byte) (value >>> 8);
+            buf[position + 3] = (byte) value;
+        }
+    }
+}
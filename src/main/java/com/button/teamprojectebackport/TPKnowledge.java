@@ -0,0 +1,130 @@
+package com.button.teamprojectebackport;
+
+import moze_intel.projecte.api.ItemInfo;
+import net.minecraft.item.Item;
+import net.minecraftforge.registries.ForgeRegistries;
+import net.minecraftforge.registries.ForgeRegistry;
+
+import java.util.*;
+
+/**
+ * Knowledge set that stores plain items as a bit per registry id and only keeps {@link ItemInfo}s with NBT around
+ */
+public class TPKnowledge extends AbstractSet<ItemInfo> {
+
+    private final BitSet items = new BitSet();
+    private int itemCount;
+    //Items with NBT and items without a registry id
+    private final Set<ItemInfo> extra = new HashSet<>();
+
+    private static ForgeRegistry<Item> registry() {
+        return (ForgeRegistry<Item>) ForgeRegistries.ITEMS;
+    }
+
+    private static int getId(ItemInfo info) {
+        return info.hasNBT() ? -1 : registry().getID(info.getItem());
+    }
+
+    public TPKnowledge copy() {
+        TPKnowledge copy = new TPKnowledge();
+        copy.items.or(items);
+        copy.itemCount = itemCount;
+        copy.extra.addAll(extra);
+        return copy;
+    }
+
+    @Override
+    public boolean add(ItemInfo info) {
+        int id = getId(info);
+        if (id < 0)
+            return extra.add(info);
+        if (items.get(id))
+            return false;
+        items.set(id);
+        itemCount++;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof ItemInfo))
+            return false;
+        ItemInfo info = (ItemInfo) o;
+        int id = getId(info);
+        if (id < 0)
+            return extra.remove(info);
+        if (!items.get(id))
+            return false;
+        items.clear(id);
+        itemCount--;
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof ItemInfo))
+            return false;
+        ItemInfo info = (ItemInfo) o;
+        int id = getId(info);
+        return id < 0 ? extra.contains(info) : items.get(id);
+    }
+
+    @Override
+    public int size() {
+        return itemCount + extra.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return itemCount == 0 && extra.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        items.clear();
+        itemCount = 0;
+        extra.clear();
+    }
+
+    @Override
+    public Iterator<ItemInfo> iterator() {
+        return new Iterator<ItemInfo>() {
+            private int next = items.nextSetBit(0);
+            private int last = -1;
+            private Iterator<ItemInfo> extraIterator;
+
+            private Iterator<ItemInfo> extraIterator() {
+                if (extraIterator == null)
+                    extraIterator = extra.iterator();
+                return extraIterator;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next >= 0 || extraIterator().hasNext();
+            }
+
+            @Override
+            public ItemInfo next() {
+                if (next < 0) {
+                    last = -1;
+                    return extraIterator().next();
+                }
+                last = next;
+                next = items.nextSetBit(next + 1);
+                return ItemInfo.fromItem(registry().getValue(last));
+            }
+
+            @Override
+            public void remove() {
+                if (last < 0) {
+                    extraIterator().remove();
+                    return;
+                }
+                items.clear(last);
+                itemCount--;
+                last = -1;
+            }
+        };
+    }
+}
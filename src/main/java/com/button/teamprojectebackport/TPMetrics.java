@@ -0,0 +1,173 @@
+package com.button.teamprojectebackport;
+
+import io.netty.buffer.Unpooled;
+import moze_intel.projecte.network.packets.IPEPacket;
+import net.minecraft.network.PacketBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for what the mod costs at runtime, cheap enough to always be on
+ */
+public class TPMetrics {
+
+    public enum SyncType {
+        KNOWLEDGE, EMC, CHANGE;
+
+        private final LongAdder packets = new LongAdder();
+        //Sizes are only taken from a sample of the sends, encoding every packet a second time to measure it would double the cost
+        private final AtomicLong sends = new AtomicLong();
+        private final LongAdder sampledPackets = new LongAdder();
+        private final LongAdder sampledBytes = new LongAdder();
+
+        private void sample(IPEPacket packet, int players) {
+            if (sends.getAndIncrement() % SAMPLE_RATE != 0)
+                return;
+            sampledPackets.add(players);
+            sampledBytes.add((long) measure(packet) * players);
+        }
+
+        //Average size of the sampled packets times all packets sent
+        private long estimateBytes() {
+            long sampled = sampledPackets.sum();
+            return sampled == 0 ? 0 : (long) ((double) sampledBytes.sum() / sampled * packets.sum());
+        }
+    }
+
+    //The first send of each type and every 64th after it is measured
+    private static final int SAMPLE_RATE = 64;
+
+    private static final LongAdder TEAM_CACHE_HITS = new LongAdder();
+    private static final LongAdder TEAM_CACHE_MISSES = new LongAdder();
+    private static final LongAdder TEAM_LOOKUPS = new LongAdder();
+    private static final LongAdder OFFLINE_PROVIDER_HITS = new LongAdder();
+    private static final LongAdder OFFLINE_PROVIDER_MISSES = new LongAdder();
+    private static final LongAdder PERSISTENT_INFO_HITS = new LongAdder();
+    private static final LongAdder PERSISTENT_INFO_MISSES = new LongAdder();
+    private static final LongAdder KNOWLEDGE_EVENTS = new LongAdder();
+    private static final LongAdder SAVES = new LongAdder();
+    private static final LongAdder SAVE_NANOS = new LongAdder();
+    private static final LongAdder SAVE_BYTES = new LongAdder();
+    private static volatile long LAST_SAVE_NANOS;
+    private static volatile long LAST_SAVE_BYTES;
+
+    /**
+     * Counts a packet sent through ProjectE's channel to the given number of players, only some of them get measured
+     */
+    public static void sent(SyncType type, IPEPacket packet, int players) {
+        if (players == 0)
+            return;
+        type.sample(packet, players);
+        type.packets.add(players);
+    }
+
+    //For packets that went out on our own channel, their size is known without encoding them again
+    public static void count(SyncType type, int bytes) {
+        type.packets.increment();
+        type.sampledPackets.increment();
+        type.sampledBytes.add(bytes);
+    }
+
+    private static int measure(IPEPacket packet) {
+        PacketBuffer buffer = new PacketBuffer(Unpooled.buffer());
+        try {
+            packet.encode(buffer);
+            return buffer.readableBytes();
+        } finally {
+            buffer.release();
+        }
+    }
+
+    public static void teamCacheHit() {
+        TEAM_CACHE_HITS.increment();
+    }
+
+    public static void teamCacheMiss() {
+        TEAM_CACHE_MISSES.increment();
+    }
+
+    public static void teamLookup() {
+        TEAM_LOOKUPS.increment();
+    }
+
+    public static void offlineProviderHit() {
+        OFFLINE_PROVIDER_HITS.increment();
+    }
+
+    public static void offlineProviderMiss() {
+        OFFLINE_PROVIDER_MISSES.increment();
+    }
+
+    public static void persistentInfoHit() {
+        PERSISTENT_INFO_HITS.increment();
+    }
+
+    public static void persistentInfoMiss() {
+        PERSISTENT_INFO_MISSES.increment();
+    }
+
+    public static void knowledgeEvent() {
+        KNOWLEDGE_EVENTS.increment();
+    }
+
+    public static void saved(long nanos, long bytes) {
+        SAVES.increment();
+        SAVE_NANOS.add(nanos);
+        SAVE_BYTES.add(bytes);
+        LAST_SAVE_NANOS = nanos;
+        LAST_SAVE_BYTES = bytes;
+    }
+
+    public static void onServerTick() {
+        int minutes = TPConfig.METRICS_LOG_MINUTES.get();
+        if (minutes > 0 && TPSavedData.getTicks() % (minutes * 1200) == 0)
+            for (String line : report())
+                TeamProjectEBackport.LOGGER.info(line);
+    }
+
+    /**
+     * Totals since the server started, team counts are only taken from the teams that are currently loaded
+     */
+    public static List<String> report() {
+        List<String> lines = new ArrayList<>();
+        for (SyncType type : SyncType.values())
+            lines.add(String.format(Locale.ROOT, "%s sync: %d packets, ~%s", type.name().toLowerCase(Locale.ROOT), type.packets.sum(), formatBytes(type.estimateBytes())));
+        lines.add(String.format(Locale.ROOT, "Team cache: %d hits, %d misses, %d index lookups", TEAM_CACHE_HITS.sum(), TEAM_CACHE_MISSES.sum(), TEAM_LOOKUPS.sum()));
+        lines.add(String.format(Locale.ROOT, "Offline providers: %d cached, %d hits, %d misses", TPOfflineProviders.size(), OFFLINE_PROVIDER_HITS.sum(), OFFLINE_PROVIDER_MISSES.sum()));
+        lines.add(String.format(Locale.ROOT, "Persistent info cache: %d cached, %d hits, %d misses", TPPersistentInfo.size(), PERSISTENT_INFO_HITS.sum(), PERSISTENT_INFO_MISSES.sum()));
+        lines.add(String.format(Locale.ROOT, "Knowledge events: %d", KNOWLEDGE_EVENTS.sum()));
+        long saves = SAVES.sum();
+        lines.add(String.format(Locale.ROOT, "Saves: %d, last %d ms / %s, average %d ms / %s", saves,
+                TimeUnit.NANOSECONDS.toMillis(LAST_SAVE_NANOS), formatBytes(LAST_SAVE_BYTES),
+                saves == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(SAVE_NANOS.sum() / saves), formatBytes(saves == 0 ? 0 : SAVE_BYTES.sum() / saves)));
+        TPSavedData data = TPSavedData.getData();
+        if (data != null) {
+            int loaded = 0;
+            long knowledge = 0;
+            for (TPTeam team : data.TEAMS.values()) {
+                //Counting an evicted team would load it back in
+                if (!team.isLoaded())
+                    continue;
+                loaded++;
+                //Doesn't count as a use, or logging metrics would keep idle teams from being evicted
+                knowledge += team.knowledgeSize();
+            }
+            lines.add(String.format(Locale.ROOT, "Teams: %d (%d loaded), players: %d, known items in loaded teams: %d",
+                    data.TEAMS.size(), loaded, data.PLAYER_TEAMS.size(), knowledge));
+        }
+        return lines;
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024)
+            return bytes + " B";
+        if (bytes < 1024 * 1024)
+            return String.format(Locale.ROOT, "%.1f KiB", bytes / 1024.0);
+        return String.format(Locale.ROOT, "%.1f MiB", bytes / (1024.0 * 1024.0));
+    }
+}
@@ -0,0 +1,74 @@
+package com.button.teamprojectebackport;
+
+import moze_intel.projecte.network.PacketHandler;
+import moze_intel.projecte.network.packets.IPEPacket;
+import net.minecraft.entity.player.ServerPlayerEntity;
+import net.minecraft.network.NetworkManager;
+import net.minecraft.util.ResourceLocation;
+import net.minecraftforge.common.util.FakePlayer;
+import net.minecraftforge.fml.common.ObfuscationReflectionHelper;
+import net.minecraftforge.fml.network.NetworkDirection;
+import net.minecraftforge.fml.network.NetworkRegistry;
+import net.minecraftforge.fml.network.PacketDistributor;
+import net.minecraftforge.fml.network.simple.SimpleChannel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Our own channel, optional on both sides so clients without the mod still get ProjectE's packets
+ */
+public class TPNetwork {
+
+    private static final String PROTOCOL_VERSION = "1";
+
+    public static final SimpleChannel CHANNEL = NetworkRegistry.newSimpleChannel(
+            new ResourceLocation("teamprojectebackport", "main"),
+            () -> PROTOCOL_VERSION,
+            NetworkRegistry.acceptMissingOr(PROTOCOL_VERSION),
+            NetworkRegistry.acceptMissingOr(PROTOCOL_VERSION));
+
+    //ProjectE's channel, broadcasting through it directly encodes a packet once for all players instead of once per player
+    private static final SimpleChannel PROJECTE_CHANNEL = findProjectEChannel();
+
+    private static SimpleChannel findProjectEChannel() {
+        try {
+            return ObfuscationReflectionHelper.getPrivateValue(PacketHandler.class, null, "HANDLER");
+        } catch (RuntimeException | LinkageError e) {
+            //A ProjectE build without the field or with another type must not keep the mod from loading
+            TeamProjectEBackport.LOGGER.warn("Could not find ProjectE's network channel, team packets are encoded for each player", e);
+            return null;
+        }
+    }
+
+    public static void register() {
+        CHANNEL.registerMessage(0, KnowledgeChunkPKT.class, KnowledgeChunkPKT::encode, KnowledgeChunkPKT::decode, KnowledgeChunkPKT::handle, Optional.of(NetworkDirection.PLAY_TO_CLIENT));
+    }
+
+    public static boolean isPresent(ServerPlayerEntity player) {
+        return CHANNEL.isRemotePresent(player.connection.getConnection());
+    }
+
+    public static <M> void sendTo(M message, ServerPlayerEntity player) {
+        CHANNEL.send(PacketDistributor.PLAYER.with(() -> player), message);
+    }
+
+    /**
+     * Sends one of ProjectE's packets to every player, the payload is encoded once for all of them
+     */
+    public static void sendToProjectE(IPEPacket packet, List<ServerPlayerEntity> players) {
+        if (PROJECTE_CHANNEL == null || players.size() == 1) {
+            for (ServerPlayerEntity player : players)
+                PacketHandler.sendTo(packet, player);
+            return;
+        }
+        List<NetworkManager> connections = new ArrayList<>(players.size());
+        for (ServerPlayerEntity player : players)
+            //Same as PacketHandler.sendTo, fake players have no client to send to
+            if (!(player instanceof FakePlayer))
+                connections.add(player.connection.getConnection());
+        if (!connections.isEmpty())
+            PROJECTE_CHANNEL.send(PacketDistributor.NMLIST.with(() -> connections), packet);
+    }
+}
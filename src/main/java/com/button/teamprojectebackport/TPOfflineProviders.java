@@ -0,0 +1,101 @@
+package com.button.teamprojectebackport;
+
+import com.google.common.base.Preconditions;
+import moze_intel.projecte.api.capabilities.IKnowledgeProvider;
+import net.minecraftforge.fml.common.thread.SidedThreadGroups;
+
+import java.util.*;
+
+/**
+ * Knowledge providers for offline players, replaces ProjectE's cache which never forgets a player
+ */
+public class TPOfflineProviders {
+
+    //Access ordered, the least recently used provider comes first
+    private static final LinkedHashMap<UUID, Entry> PROVIDERS = new LinkedHashMap<>(16, 0.75F, true);
+    //One binding per team for the cached providers of its members, replaced once the membership generation moves on
+    private static final Map<UUID, TeamKnowledgeProvider.TeamBinding> BINDINGS = new HashMap<>();
+
+    public static synchronized IKnowledgeProvider get(UUID player) {
+        int now = TPSavedData.getTicks();
+        Entry entry = PROVIDERS.get(player);
+        if (entry != null && now - entry.lastAccess < ttlTicks()) {
+            TPMetrics.offlineProviderHit();
+            entry.lastAccess = now;
+            return entry.provider;
+        }
+        //Cached providers can be read from any thread, only creating one has to happen on the server thread
+        Preconditions.checkState(Thread.currentThread().getThreadGroup() == SidedThreadGroups.SERVER);
+        TPMetrics.offlineProviderMiss();
+        entry = new Entry(new TeamKnowledgeProvider(player, true), now);
+        PROVIDERS.put(player, entry);
+        int maxSize = TPConfig.OFFLINE_PROVIDER_CACHE_SIZE.get();
+        Iterator<Entry> iterator = PROVIDERS.values().iterator();
+        while (PROVIDERS.size() > maxSize && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+        return entry.provider;
+    }
+
+    /**
+     * The binding shared by every cached provider of the team, a new one once the membership changed
+     */
+    public static synchronized TeamKnowledgeProvider.TeamBinding getBinding(TPTeam team, long generation) {
+        TeamKnowledgeProvider.TeamBinding binding = BINDINGS.get(team.getUUID());
+        if (binding == null || binding.team != team || binding.generation != generation) {
+            binding = new TeamKnowledgeProvider.TeamBinding(team, generation);
+            BINDINGS.put(team.getUUID(), binding);
+        }
+        return binding;
+    }
+
+    public static synchronized void invalidate(UUID player) {
+        PROVIDERS.remove(player);
+    }
+
+    public static synchronized void clear() {
+        PROVIDERS.clear();
+        BINDINGS.clear();
+    }
+
+    public static synchronized int size() {
+        return PROVIDERS.size();
+    }
+
+    public static void onServerTick() {
+        //Drop expired providers once a minute, lookups already ignore them
+        if (TPSavedData.getTicks() % 1200 == 0)
+            removeExpired();
+    }
+
+    private static synchronized void removeExpired() {
+        int now = TPSavedData.getTicks();
+        int ttl = ttlTicks();
+        //Least recently used first, so everything after the first fresh entry is fresh as well
+        Iterator<Entry> iterator = PROVIDERS.values().iterator();
+        while (iterator.hasNext() && now - iterator.next().lastAccess >= ttl)
+            iterator.remove();
+        //Keep only the current bindings some cached provider still uses
+        long generation = TPSavedData.getMembershipGeneration();
+        Set<TeamKnowledgeProvider.TeamBinding> used = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Entry entry : PROVIDERS.values())
+            used.add(entry.provider.getBinding());
+        BINDINGS.values().removeIf(binding -> binding.generation != generation || !used.contains(binding));
+    }
+
+    private static int ttlTicks() {
+        return TPConfig.OFFLINE_PROVIDER_TTL_MINUTES.get() * 1200;
+    }
+
+    private static class Entry {
+
+        private final TeamKnowledgeProvider provider;
+        private int lastAccess;
+
+        private Entry(TeamKnowledgeProvider provider, int lastAccess) {
+            this.provider = provider;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
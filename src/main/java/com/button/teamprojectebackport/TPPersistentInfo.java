@@ -0,0 +1,77 @@
+package com.button.teamprojectebackport;
+
+import moze_intel.projecte.api.ItemInfo;
+import moze_intel.projecte.emc.EMCMappingHandler;
+import moze_intel.projecte.emc.nbt.NBTManager;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Remembers the persistent form of items with NBT, cleaning the NBT is the expensive part of knowledge lookups.
+ * Both the NBT processors and the EMC values come from the mappings, so everything is dropped when they reload
+ */
+public class TPPersistentInfo {
+
+    //Access ordered, the least recently used item comes first
+    private static final LinkedHashMap<ItemInfo, Entry> CACHE = new LinkedHashMap<>(16, 0.75F, true);
+
+    @Nonnull
+    public static ItemInfo getPersistentInfo(@Nonnull ItemInfo info) {
+        if (!info.hasNBT())
+            return info;
+        return get(info).persistent;
+    }
+
+    /**
+     * The persistent form if the item keeps NBT that has no EMC value of its own, null otherwise
+     */
+    @Nullable
+    public static ItemInfo getIfPersistent(@Nonnull ItemInfo info) {
+        if (!info.hasNBT())
+            return null;
+        Entry entry = get(info);
+        return entry.extended ? entry.persistent : null;
+    }
+
+    private static synchronized Entry get(ItemInfo info) {
+        Entry entry = CACHE.get(info);
+        if (entry != null) {
+            TPMetrics.persistentInfoHit();
+            return entry;
+        }
+        TPMetrics.persistentInfoMiss();
+        ItemInfo persistent = NBTManager.getPersistentInfo(info);
+        boolean extended = !EMCMappingHandler.hasEmcValue(info) && persistent.hasNBT() && !EMCMappingHandler.hasEmcValue(persistent);
+        entry = new Entry(persistent, extended);
+        CACHE.put(info, entry);
+        int maxSize = TPConfig.PERSISTENT_INFO_CACHE_SIZE.get();
+        Iterator<Entry> iterator = CACHE.values().iterator();
+        while (CACHE.size() > maxSize && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+        return entry;
+    }
+
+    public static synchronized void clear() {
+        CACHE.clear();
+    }
+
+    public static synchronized int size() {
+        return CACHE.size();
+    }
+
+    private static class Entry {
+
+        private final ItemInfo persistent;
+        private final boolean extended;
+
+        private Entry(ItemInfo persistent, boolean extended) {
+            this.persistent = persistent;
+            this.extended = extended;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.button.teamprojectebackport;
+
+import net.minecraft.nbt.CompoundNBT;
+import net.minecraft.nbt.CompressedStreamTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single background thread that encodes, compresses and writes team data in the order it was submitted
+ */
+public class TPSaveWorker {
+
+    private static ExecutorService EXECUTOR;
+
+    public static synchronized void submit(Runnable task) {
+        if (EXECUTOR == null)
+            EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "TeamProjectE Saver");
+                thread.setDaemon(true);
+                return thread;
+            });
+        EXECUTOR.execute(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                TeamProjectEBackport.LOGGER.error("Failed to save team data", e);
+            }
+        });
+    }
+
+    /**
+     * Blocks until everything submitted so far has been written, then stops the thread
+     */
+    public static synchronized void flush() {
+        if (EXECUTOR == null)
+            return;
+        EXECUTOR.shutdown();
+        try {
+            if (!EXECUTOR.awaitTermination(1, TimeUnit.MINUTES))
+                TeamProjectEBackport.LOGGER.error("Timed out waiting for team data to be saved");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        EXECUTOR = null;
+    }
+
+    public static void writeAtomically(CompoundNBT tag, File file) throws IOException {
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        CompressedStreamTools.writeCompressed(tag, temp);
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -2,39 +2,80 @@ package com.button.teamprojectebackport;
 
 
 import net.minecraft.nbt.CompoundNBT;
+import net.minecraft.nbt.CompressedStreamTools;
 import net.minecraft.nbt.INBT;
 import net.minecraft.nbt.ListNBT;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.SharedConstants;
 import net.minecraftforge.common.util.Constants.NBT;
+import net.minecraft.world.storage.FolderName;
 import net.minecraft.world.storage.WorldSavedData;
 import net.minecraftforge.fml.server.ServerLifecycleHooks;
 
 import javax.annotation.Nonnull;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.UUID;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class TPSavedData extends WorldSavedData {
 
-    private static TPSavedData DATA;
+    private static volatile TPSavedData DATA;
+    private static volatile int TICKS;
+    //Bumped whenever any player joins or leaves a team, lets providers keep their team until it changes
+    private static final AtomicLong MEMBERSHIP_GENERATION = new AtomicLong();
 
     public static TPSavedData getData(){
-        if(DATA == null && ServerLifecycleHooks.getCurrentServer() != null)
-            DATA = ServerLifecycleHooks.getCurrentServer().overworld().getDataStorage()
-                    .computeIfAbsent(TPSavedData::new, "teamprojectebackport");
-        return DATA;
+        TPSavedData data = DATA;
+        if(data != null)
+            return data;
+        synchronized (TPSavedData.class) {
+            if(DATA == null && ServerLifecycleHooks.getCurrentServer() != null) {
+                data = ServerLifecycleHooks.getCurrentServer().overworld().getDataStorage()
+                        .computeIfAbsent(TPSavedData::new, "teamprojectebackport");
+                //Replayed before the store is published, so no one sees a half replayed team
+                TPJournal.open(data, getShardDirectory());
+                DATA = data;
+            }
+            return DATA;
+        }
     }
 
-    public static void onServerStopped(){
-        DATA = null;
+    public static int getTicks(){
+        return TICKS;
     }
 
-    public Map<UUID, TPTeam> TEAMS = new HashMap<>();
-    public final Map<UUID, UUID> PLAYER_TEAM_CACHE = new HashMap<>();
+    public static long getMembershipGeneration(){
+        return MEMBERSHIP_GENERATION.get();
+    }
 
-    public void invalidateCache(UUID uuid){
-        PLAYER_TEAM_CACHE.remove(uuid);
+    public static void onServerTick(){
+        TICKS++;
+        //Check for idle teams once a minute
+        if(DATA != null && TICKS % 1200 == 0)
+            DATA.evictIdleTeams();
+    }
+
+    public static void onServerStopped(){
+        //The final world save happens before the server stops, make sure it reached the disk
+        TPSaveWorker.flush();
+        DATA = null;
     }
 
+    public final Map<UUID, TPTeam> TEAMS = new ConcurrentHashMap<>();
+    //Reverse index of every owner and member to their team, kept in sync by TPTeam
+    public final Map<UUID, TPTeam> PLAYER_TEAMS = new ConcurrentHashMap<>();
+    //Teams deleted since the last save whose shard still has to be removed
+    private final Set<UUID> REMOVED_TEAMS = ConcurrentHashMap.newKeySet();
+    //Snapshots handed to the save worker that haven't reached the disk yet
+    private final Map<UUID, TPTeam.Snapshot> PENDING_TEAMS = new ConcurrentHashMap<>();
+    //Teams whose last write or delete failed and the manifest if its write did, only used on the save worker.
+    // The journal is kept until they have been written, it still holds their changes
+    private final Set<UUID> UNSAVED_TEAMS = new HashSet<>();
+    private boolean unsavedManifest;
+
     public TPSavedData() {
         super("teamprojectebackport");
     }
@@ -43,32 +84,267 @@ public class TPSavedData extends WorldSavedData {
     }
 
     @Override
-    public void load(CompoundNBT p_76184_1_) {}
+    public void load(CompoundNBT tag) {
+        read(tag);
+    }
 
     public TPSavedData(CompoundNBT tag) {
         super("teamprojectebackport");
+        read(tag);
+    }
+
+    private void read(CompoundNBT tag) {
         //TeamProjectEBackport.LOGGER.info(tag.toString());
+        TEAMS.clear();
+        PLAYER_TEAMS.clear();
         for (INBT t : tag.getList("teams", NBT.TAG_COMPOUND)) {
-            CompoundNBT team = (CompoundNBT) t;
-            TEAMS.put(team.getUUID("uuid"), new TPTeam(team.getCompound("team")));
+            CompoundNBT teamTag = ((CompoundNBT) t).getCompound("team");
+            //Only membership is read here, the shard is loaded once the team is used
+            TPTeam team = new TPTeam(teamTag);
+            if (team.isLoaded()) {
+                //Written before teams were sharded, move it into its own file on the next save
+                team.setDirty(true);
+                setDirty();
+            }
+            index(team);
         }
     }
 
+    public void loadTeam(TPTeam team) {
+        File file = new File(getShardDirectory(), team.getUUID() + ".dat");
+        CompoundNBT tag = new CompoundNBT();
+        if (file.exists()) {
+            try {
+                tag = CompressedStreamTools.readCompressed(file);
+            } catch (IOException e) {
+                //Keep the broken file around instead of overwriting it on the next save
+                File corrupt = new File(file.getParentFile(), file.getName() + ".corrupt");
+                TeamProjectEBackport.LOGGER.error("Could not load team {}, moving it to {}", team.getUUID(), corrupt, e);
+                if (!file.renameTo(corrupt))
+                    TeamProjectEBackport.LOGGER.error("Could not move {}", file);
+            }
+        }
+        team.loadData(tag);
+    }
+
+    /**
+     * The team's membership and data as one tag, an unloaded team is read from its shard without loading it
+     */
+    public CompoundNBT exportTeam(TPTeam team) throws IOException {
+        CompoundNBT tag = team.saveMembers();
+        if (team.isLoaded())
+            return team.saveData(tag);
+        //A write that hasn't reached the disk yet is newer than the shard
+        TPTeam.Snapshot pending = PENDING_TEAMS.get(team.getUUID());
+        if (pending != null)
+            return tag.merge(pending.save());
+        File file = new File(getShardDirectory(), team.getUUID() + ".dat");
+        if (file.exists())
+            tag.merge(CompressedStreamTools.readCompressed(file));
+        return tag;
+    }
+
+    private void evictIdleTeams() {
+        int idleTicks = TPConfig.TEAM_IDLE_MINUTES.get() * 1200;
+        if (idleTicks <= 0)
+            return;
+        int evicted = 0;
+        for (TPTeam team : TEAMS.values()) {
+            if (!team.isLoaded())
+                continue;
+            if (!team.getOnline().isEmpty()) {
+                team.ensureLoaded();
+                continue;
+            }
+            //A team with a write in flight would read its old shard back
+            if (TICKS - team.getLastAccess() >= idleTicks && !PENDING_TEAMS.containsKey(team.getUUID()) && team.evict())
+                evicted++;
+        }
+        if (evicted > 0)
+            TeamProjectEBackport.LOGGER.debug("Unloaded {} idle teams", evicted);
+    }
+
+    private void index(TPTeam team) {
+        TEAMS.put(team.getUUID(), team);
+        for (UUID uuid : team.getAll())
+            PLAYER_TEAMS.put(uuid, team);
+        MEMBERSHIP_GENERATION.incrementAndGet();
+    }
+
+    public void addTeam(TPTeam team) {
+        index(team);
+        REMOVED_TEAMS.remove(team.getUUID());
+        TPJournal.teamAdded(team);
+        setDirty();
+    }
+
+    public void removeTeam(TPTeam team) {
+        unindex(team);
+        TPJournal.teamRemoved(team);
+    }
+
+    private void unindex(TPTeam team) {
+        TEAMS.remove(team.getUUID());
+        for (UUID uuid : team.getAll())
+            PLAYER_TEAMS.remove(uuid, team);
+        REMOVED_TEAMS.add(team.getUUID());
+        MEMBERSHIP_GENERATION.incrementAndGet();
+        setDirty();
+    }
+
+    //Journal replay, the same as adding and removing without journaling it again
+    void replayTeam(TPTeam team) {
+        index(team);
+        REMOVED_TEAMS.remove(team.getUUID());
+        setDirty();
+    }
+
+    void replayRemoval(TPTeam team) {
+        unindex(team);
+    }
+
+    public void indexMember(UUID uuid, TPTeam team) {
+        PLAYER_TEAMS.put(uuid, team);
+        MEMBERSHIP_GENERATION.incrementAndGet();
+    }
+
+    public void unindexMember(UUID uuid, TPTeam team) {
+        //Only drop the entry if it still points at this team, the player may already have joined another one
+        if (PLAYER_TEAMS.remove(uuid, team))
+            MEMBERSHIP_GENERATION.incrementAndGet();
+    }
+
     public static TPSavedData create(){
         return new TPSavedData();
     }
 
+    private static File getShardDirectory() {
+        return ServerLifecycleHooks.getCurrentServer().getWorldPath(FolderName.ROOT)
+                .resolve("data").resolve("teamprojectebackport").toFile();
+    }
+
+    @Override
+    public void save(File file) {
+        //Changes from here on go to a new journal segment, the older ones are covered by this save
+        int segment = TPJournal.rotate();
+        //Only copy what changed on the server thread, encoding and writing happen on the save worker
+        List<TPTeam.Snapshot> teams = new ArrayList<>();
+        for (TPTeam team : TEAMS.values()) {
+            TPTeam.Snapshot snapshot = team.snapshotIfDirty();
+            if (snapshot != null) {
+                teams.add(snapshot);
+                PENDING_TEAMS.put(snapshot.getUUID(), snapshot);
+            }
+        }
+        List<UUID> removed = new ArrayList<>(REMOVED_TEAMS);
+        REMOVED_TEAMS.clear();
+        //The manifest is only rewritten if the membership changed
+        CompoundNBT manifest = null;
+        if (isDirty()) {
+            manifest = new CompoundNBT();
+            manifest.put("data", save(new CompoundNBT()));
+            manifest.putInt("DataVersion", SharedConstants.getCurrentVersion().getWorldVersion());
+            setDirty(false);
+        }
+        if (teams.isEmpty() && removed.isEmpty() && manifest == null)
+            return;
+        File directory = getShardDirectory();
+        CompoundNBT manifestTag = manifest;
+        TPSaveWorker.submit(() -> write(directory, teams, removed, manifestTag, file, segment));
+    }
+
+    private void write(File directory, List<TPTeam.Snapshot> teams, List<UUID> removed, CompoundNBT manifest, File file, int segment) {
+        long start = System.nanoTime();
+        long bytes = 0;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            TeamProjectEBackport.LOGGER.error("Could not create {}", directory);
+            teams.forEach(team -> UNSAVED_TEAMS.add(team.getUUID()));
+            UNSAVED_TEAMS.addAll(removed);
+            if (manifest != null)
+                unsavedManifest = true;
+            //Nothing was written, keep these teams loaded until the next save manages to
+            retryOnNextSave(() -> teams.forEach(team -> {
+                TPTeam t = TPTeam.getTeam(team.getUUID());
+                if (t != null)
+                    t.markDirty();
+            }));
+            removed.forEach(this::retryRemoval);
+            return;
+        }
+        //Teams are written first so the manifest never lists a team whose shard is missing
+        for (TPTeam.Snapshot team : teams) {
+            try {
+                File shard = new File(directory, team.getUUID() + ".dat");
+                TPSaveWorker.writeAtomically(team.save(), shard);
+                bytes += shard.length();
+                PENDING_TEAMS.remove(team.getUUID(), team);
+                UNSAVED_TEAMS.remove(team.getUUID());
+            } catch (IOException e) {
+                UNSAVED_TEAMS.add(team.getUUID());
+                TeamProjectEBackport.LOGGER.error("Could not save team {}", team.getUUID(), e);
+                retryOnNextSave(() -> {
+                    TPTeam t = TPTeam.getTeam(team.getUUID());
+                    if (t != null)
+                        t.markDirty();
+                });
+            }
+        }
+        for (UUID uuid : removed) {
+            try {
+                Files.deleteIfExists(new File(directory, uuid + ".dat").toPath());
+                UNSAVED_TEAMS.remove(uuid);
+            } catch (IOException e) {
+                UNSAVED_TEAMS.add(uuid);
+                TeamProjectEBackport.LOGGER.error("Could not delete team {}", uuid, e);
+                retryRemoval(uuid);
+            }
+        }
+        if (manifest != null) {
+            try {
+                TPSaveWorker.writeAtomically(manifest, file);
+                bytes += file.length();
+                unsavedManifest = false;
+            } catch (IOException e) {
+                unsavedManifest = true;
+                TeamProjectEBackport.LOGGER.error("Could not save {}", file, e);
+                retryOnNextSave(() -> getData().setDirty());
+            }
+        }
+        //A failed write is only retried by a later save, until then the journal is the only copy of those changes
+        if (UNSAVED_TEAMS.isEmpty() && !unsavedManifest)
+            TPJournal.compact(directory, segment);
+        TPMetrics.saved(System.nanoTime() - start, bytes);
+    }
+
+    //Deletes the shard again on the next save, unless the team came back in the meantime and its shard is written instead
+    private void retryRemoval(UUID uuid) {
+        retryOnNextSave(() -> {
+            TPTeam team = TEAMS.get(uuid);
+            if (team != null)
+                team.markDirty();
+            else
+                REMOVED_TEAMS.add(uuid);
+        });
+    }
+
+    private static void retryOnNextSave(Runnable markDirty) {
+        MinecraftServer server = ServerLifecycleHooks.getCurrentServer();
+        if (server != null)
+            server.execute(markDirty);
+    }
+
     @Override
     public @Nonnull
     CompoundNBT save(CompoundNBT NBT) {
+        //The manifest only holds membership, knowledge and emc are kept in one shard per team
         ListNBT teams = new ListNBT();
         TEAMS.forEach((uuid, team) -> {
             CompoundNBT t = new CompoundNBT();
             t.putUUID("uuid", uuid);
-            t.put("team", team.save());
+            t.put("team", team.saveMembers());
             teams.add(t);
         });
         NBT.put("teams", teams);
         return NBT;
     }
-}
+}
\ No newline at end of file
@@ -0,0 +1,315 @@
+package com.button.teamprojectebackport;
+
+import moze_intel.projecte.api.ItemInfo;
+import moze_intel.projecte.api.ProjectEAPI;
+import moze_intel.projecte.api.event.PlayerKnowledgeChangeEvent;
+import moze_intel.projecte.network.packets.IPEPacket;
+import moze_intel.projecte.network.packets.to_client.knowledge.KnowledgeSyncChangePKT;
+import moze_intel.projecte.network.packets.to_client.knowledge.KnowledgeSyncEmcPKT;
+import moze_intel.projecte.network.packets.to_client.knowledge.KnowledgeSyncPKT;
+import net.minecraft.entity.player.ServerPlayerEntity;
+import net.minecraft.nbt.CompoundNBT;
+import net.minecraft.nbt.ListNBT;
+import net.minecraft.server.management.PlayerList;
+import net.minecraftforge.common.MinecraftForge;
+import net.minecraftforge.fml.server.ServerLifecycleHooks;
+
+import java.util.*;
+
+/**
+ * Collects knowledge, emc and event changes from any thread and sends them to clients once per server tick
+ */
+public class TPSync {
+
+    //How many knowledge changes a team remembers, clients further behind than that get a full sync instead
+    private static final int JOURNAL_SIZE = 512;
+
+    private static final Map<UUID, KnowledgeJournal> JOURNALS = new HashMap<>();
+    private static final Set<KnowledgeJournal> DIRTY = new LinkedHashSet<>();
+    //Teams whose EMC changed this tick, only the final value gets sent
+    private static final Set<UUID> DIRTY_EMC = new LinkedHashSet<>();
+    //Teams whose knowledge changed this tick, their players get one PlayerKnowledgeChangeEvent each
+    private static final Set<UUID> DIRTY_EVENTS = new LinkedHashSet<>();
+
+    public static synchronized void knowledgeChanged(TPTeam team, ItemInfo info, boolean learned) {
+        getJournal(team).append(info, learned);
+    }
+
+    /**
+     * Journals many changes at once, more than the journal holds turns into a full sync for the team
+     */
+    public static synchronized void knowledgeChanged(TPTeam team, Collection<ItemInfo> learned) {
+        if (learned.isEmpty())
+            return;
+        KnowledgeJournal journal = getJournal(team);
+        if (learned.size() > JOURNAL_SIZE) {
+            journal.resetAll();
+            return;
+        }
+        for (ItemInfo info : learned)
+            journal.append(info, true);
+    }
+
+    public static synchronized void requestFullSync(TPTeam team) {
+        getJournal(team).resetAll();
+    }
+
+    public static synchronized void requestFullSync(TPTeam team, UUID player) {
+        getJournal(team).reset(player);
+    }
+
+    public static synchronized void emcChanged(TPTeam team) {
+        DIRTY_EMC.add(team.getUUID());
+    }
+
+    public static synchronized void fireChangedEvent(TPTeam team) {
+        DIRTY_EVENTS.add(team.getUUID());
+    }
+
+    /**
+     * Sends what changed while the player's chunked full sync was on its way
+     */
+    public static synchronized void fullSyncCompleted(UUID player) {
+        TPTeam team = TPTeam.getTeamByMember(player);
+        if (team == null)
+            return;
+        DIRTY.add(getJournal(team));
+        DIRTY_EMC.add(team.getUUID());
+    }
+
+    public static void onServerTick() {
+        List<UUID> events;
+        List<PendingChanges> changes;
+        List<UUID> emc;
+        //Only the work is taken under the lock, threads changing teams must not wait for packets and event listeners
+        synchronized (TPSync.class) {
+            events = take(DIRTY_EVENTS);
+            changes = new ArrayList<>(DIRTY.size());
+            for (KnowledgeJournal journal : DIRTY)
+                changes.add(journal.takePending());
+            DIRTY.clear();
+            emc = take(DIRTY_EMC);
+        }
+        if (!events.isEmpty())
+            flushEvents(events);
+        for (PendingChanges pending : changes)
+            pending.flush();
+        for (UUID teamUUID : emc)
+            flushEmc(teamUUID);
+    }
+
+    private static List<UUID> take(Set<UUID> dirty) {
+        if (dirty.isEmpty())
+            return Collections.emptyList();
+        List<UUID> taken = new ArrayList<>(dirty);
+        dirty.clear();
+        return taken;
+    }
+
+    public static synchronized void clear() {
+        JOURNALS.clear();
+        DIRTY.clear();
+        DIRTY_EMC.clear();
+        DIRTY_EVENTS.clear();
+    }
+
+    private static void flushEvents(List<UUID> teams) {
+        boolean onlineOnly = TPConfig.KNOWLEDGE_EVENTS_ONLINE_ONLY.get();
+        PlayerList playerList = ServerLifecycleHooks.getCurrentServer().getPlayerList();
+        //A player may be affected through more than one team, e.g. when moving knowledge between them
+        Set<UUID> players = new HashSet<>();
+        for (UUID teamUUID : teams) {
+            TPTeam team = TPTeam.getTeam(teamUUID);
+            if (team != null)
+                players.addAll(team.getAll());
+        }
+        for (UUID uuid : players) {
+            if (onlineOnly && playerList.getPlayer(uuid) == null)
+                continue;
+            MinecraftForge.EVENT_BUS.post(new PlayerKnowledgeChangeEvent(uuid));
+            TPMetrics.knowledgeEvent();
+        }
+    }
+
+    private static void flushEmc(UUID teamUUID) {
+        TPTeam team = TPTeam.getTeam(teamUUID);
+        if (team == null)
+            return;
+        List<ServerPlayerEntity> players = new ArrayList<>(team.getOnline());
+        //Players still receiving a full sync get the value once it completes
+        players.removeIf(player -> TPChunkedSync.isPending(TeamProjectEBackport.getPlayerUUID(player)));
+        send(TPMetrics.SyncType.EMC, new KnowledgeSyncEmcPKT(team.getEmc()), players);
+    }
+
+    private static KnowledgeJournal getJournal(TPTeam team) {
+        return JOURNALS.computeIfAbsent(team.getUUID(), KnowledgeJournal::new);
+    }
+
+    public static ListNBT writeKnowledge(TPTeam team) {
+        ListNBT knowledge = new ListNBT();
+        for (ItemInfo info : team.getKnowledge())
+            knowledge.add(info.write(new CompoundNBT()));
+        return knowledge;
+    }
+
+    private static void sendFullSync(ServerPlayerEntity player, ListNBT knowledge) {
+        player.getCapability(ProjectEAPI.KNOWLEDGE_CAPABILITY).ifPresent(provider -> {
+            if (!(provider instanceof TeamKnowledgeProvider))
+                return;
+            CompoundNBT properties = ((TeamKnowledgeProvider) provider).serializeForClient(knowledge);
+            //Clients with this mod get it compressed and in pieces, the result is the same
+            if (TPNetwork.isPresent(player))
+                TPChunkedSync.queue(player, properties);
+            else
+                send(TPMetrics.SyncType.KNOWLEDGE, new KnowledgeSyncPKT(properties), Collections.singletonList(player));
+        });
+    }
+
+    private static void send(TPMetrics.SyncType type, IPEPacket packet, List<ServerPlayerEntity> players) {
+        if (players.isEmpty())
+            return;
+        TPNetwork.sendToProjectE(packet, players);
+        TPMetrics.sent(type, packet, players.size());
+    }
+
+    /**
+     * Ring buffer of the latest knowledge changes of a team together with how far each online member has been sent.
+     * Only touched with the TPSync lock held
+     */
+    private static class KnowledgeJournal {
+
+        private final UUID teamUUID;
+        private final ItemInfo[] changes = new ItemInfo[JOURNAL_SIZE];
+        private final boolean[] learned = new boolean[JOURNAL_SIZE];
+        //Sequence number of the next change
+        private long head;
+        //Next sequence number each online member still has to receive, missing players need a full sync
+        private Map<UUID, Long> cursors = new HashMap<>();
+        //Resets since the last takePending, a flush that was under way must not bring their cursors back
+        private int resets;
+        private final Set<UUID> resetPlayers = new HashSet<>();
+
+        private KnowledgeJournal(UUID teamUUID) {
+            this.teamUUID = teamUUID;
+        }
+
+        private void append(ItemInfo info, boolean learned) {
+            int index = (int) (head % JOURNAL_SIZE);
+            this.changes[index] = info;
+            this.learned[index] = learned;
+            head++;
+            DIRTY.add(this);
+        }
+
+        private void resetAll() {
+            cursors.clear();
+            resets++;
+            DIRTY.add(this);
+        }
+
+        private void reset(UUID player) {
+            cursors.remove(player);
+            resetPlayers.add(player);
+            DIRTY.add(this);
+        }
+
+        //Copies the cursors and the changes someone still needs, so they can be sent without the lock
+        private PendingChanges takePending() {
+            resetPlayers.clear();
+            long first = head;
+            for (long cursor : cursors.values())
+                if (cursor >= head - JOURNAL_SIZE && cursor < first)
+                    first = cursor;
+            int count = (int) (head - first);
+            ItemInfo[] pendingChanges = new ItemInfo[count];
+            boolean[] pendingLearned = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                int index = (int) ((first + i) % JOURNAL_SIZE);
+                pendingChanges[i] = changes[index];
+                pendingLearned[i] = learned[index];
+            }
+            return new PendingChanges(this, new HashMap<>(cursors), first, head, pendingChanges, pendingLearned, resets);
+        }
+
+        private void update(PendingChanges pending, Map<UUID, Long> next) {
+            //Everyone was reset while sending, they get a full sync on the next tick
+            if (resets != pending.resets)
+                return;
+            next.keySet().removeAll(resetPlayers);
+            //Offline and former members are dropped and get a full sync when they come back
+            cursors = next;
+            //With nobody online there is no one to keep the changes for, a player without a cursor gets a full sync anyway
+            if (next.isEmpty() && !DIRTY.contains(this))
+                JOURNALS.remove(teamUUID, this);
+        }
+    }
+
+    /**
+     * What a journal had to send when the tick started, sent without holding the TPSync lock
+     */
+    private static class PendingChanges {
+
+        private final KnowledgeJournal journal;
+        private final Map<UUID, Long> cursors;
+        //Sequence number of the first copied change
+        private final long first;
+        private final long head;
+        private final ItemInfo[] changes;
+        private final boolean[] learned;
+        private final int resets;
+
+        private PendingChanges(KnowledgeJournal journal, Map<UUID, Long> cursors, long first, long head, ItemInfo[] changes, boolean[] learned, int resets) {
+            this.journal = journal;
+            this.cursors = cursors;
+            this.first = first;
+            this.head = head;
+            this.changes = changes;
+            this.learned = learned;
+            this.resets = resets;
+        }
+
+        private void flush() {
+            TPTeam team = TPTeam.getTeam(journal.teamUUID);
+            if (team == null) {
+                synchronized (TPSync.class) {
+                    JOURNALS.remove(journal.teamUUID, journal);
+                }
+                return;
+            }
+            ListNBT knowledge = null;
+            Map<UUID, Long> next = new HashMap<>();
+            //Members that are behind by the same changes share every packet, so group them by where they are
+            TreeMap<Long, List<ServerPlayerEntity>> behind = new TreeMap<>();
+            for (ServerPlayerEntity player : team.getOnline()) {
+                UUID uuid = TeamProjectEBackport.getPlayerUUID(player);
+                Long cursor = cursors.get(uuid);
+                if (cursor != null && TPChunkedSync.isPending(uuid)) {
+                    //Held back until the full sync has arrived, it would overwrite them otherwise
+                    next.put(uuid, cursor);
+                    continue;
+                }
+                if (cursor == null || cursor < head - JOURNAL_SIZE) {
+                    //Knowledge is the same for the whole team so only write it once
+                    if (knowledge == null)
+                        knowledge = writeKnowledge(team);
+                    sendFullSync(player, knowledge);
+                } else if (cursor < head) {
+                    behind.computeIfAbsent(cursor, c -> new ArrayList<>()).add(player);
+                }
+                next.put(uuid, head);
+            }
+            //Each change is built and encoded once, for everyone who hasn't received it yet
+            List<ServerPlayerEntity> recipients = new ArrayList<>();
+            for (long seq = behind.isEmpty() ? head : behind.firstKey(); seq < head; seq++) {
+                List<ServerPlayerEntity> from = behind.get(seq);
+                if (from != null)
+                    recipients.addAll(from);
+                int index = (int) (seq - first);
+                send(TPMetrics.SyncType.CHANGE, new KnowledgeSyncChangePKT(changes[index], learned[index]), recipients);
+            }
+            synchronized (TPSync.class) {
+                journal.update(this, next);
+            }
+        }
+    }
+}
@@ -2,34 +2,57 @@ package com.button.teamprojectebackport;
 
 import com.google.common.collect.Lists;
 import moze_intel.projecte.api.ItemInfo;
+import moze_intel.projecte.emc.EMCMappingHandler;
 import net.minecraft.nbt.CompoundNBT;
 import net.minecraft.nbt.ListNBT;
 import net.minecraftforge.common.util.Constants.NBT;
 import net.minecraft.entity.player.PlayerEntity;
+import net.minecraft.entity.player.ServerPlayerEntity;
+import net.minecraft.server.MinecraftServer;
+import net.minecraftforge.fml.server.ServerLifecycleHooks;
 
+import javax.annotation.Nullable;
 import java.math.BigInteger;
 import java.util.*;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class TPTeam {
 
+    private static volatile long mappingGeneration;
 
     private final UUID teamUUID;
-    private UUID owner;
-    private final List<UUID> members;
-
-    private final Set<ItemInfo> knowledge;
-    private BigInteger emc;
+    private volatile UUID owner;
+    //Insertion ordered so saves keep the order players joined in
+    private final Set<UUID> members;
+    //Online owner and members, built from the player list when first needed and then kept up to date by
+    // logins, logouts and membership changes. Null until built
+    private volatile List<ServerPlayerEntity> online;
+    private final Object rosterLock = new Object();
+
+    //Guards members, knowledge, emc and the full knowledge flag, readers on other threads share it with the server thread
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TPKnowledge knowledge;
+    private volatile long knowledgeGeneration;
+    //Immutable copy published by writers before they release the lock, so readers only load the field. Null while evicted
+    private volatile Set<ItemInfo> knowledgeSnapshot = Collections.emptySet();
+    private volatile FullKnowledge fullKnowledgeCache;
+    private final TPEmc emc;
     private boolean fullKnowledge;
+    //Whether the knowledge, emc or full knowledge flag changed since the team's shard was last written
+    private volatile boolean dirty;
+    //Membership is always resident, the shard data is only loaded while the team is in use
+    private volatile boolean loaded = true;
+    private int lastAccess;
 
     public TPTeam(UUID teamUUID, UUID owner){
         this.teamUUID = teamUUID;
         this.owner = owner;
-        this.members = new ArrayList<>();
-        this.knowledge = new HashSet<>();
-        this.emc = BigInteger.ZERO;
+        this.members = new LinkedHashSet<>();
+        this.knowledge = new TPKnowledge();
+        this.emc = new TPEmc();
         this.fullKnowledge = false;
     }
 
@@ -40,10 +63,98 @@ public class TPTeam {
     public TPTeam(CompoundNBT tag){
         this(tag.getUUID("uuid"), tag.getUUID("owner"));
         this.members.addAll(tag.getList("members", NBT.TAG_COMPOUND).stream().map(t -> ((CompoundNBT) t).getUUID("uuid")).collect(Collectors.toList()));
+        //Teams that were saved before sharding still carry their data
+        if(tag.contains("emc"))
+            loadData(tag);
+        else {
+            this.loaded = false;
+            this.knowledgeSnapshot = null;
+        }
+    }
+
+    public void loadData(CompoundNBT tag){
+        List<ItemInfo> infos = tag.getList("knowledge", NBT.TAG_COMPOUND).stream().map(t -> ItemInfo.read(((CompoundNBT)t))).filter(Objects::nonNull).collect(Collectors.toList());
+        BigInteger emc = tag.contains("emc") ? new BigInteger(tag.getString("emc")) : BigInteger.ZERO;
+        lock.writeLock().lock();
+        try {
+            this.knowledge.clear();
+            this.knowledge.addAll(infos);
+            this.emc.set(emc);
+            this.fullKnowledge = tag.getBoolean("fullKnowledge");
+            this.loaded = true;
+            publishKnowledge();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void ensureLoaded(){
+        lastAccess = TPSavedData.getTicks();
+        if(loaded)
+            return;
+        lock.writeLock().lock();
+        try {
+            if(!loaded)
+                TPSavedData.getData().loadTeam(this);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //Read lock with the shard data loaded, the data may be evicted between loading and locking so check again
+    private void readLock(){
+        ensureLoaded();
+        lock.readLock().lock();
+        while(!loaded){
+            lock.readLock().unlock();
+            ensureLoaded();
+            lock.readLock().lock();
+        }
+    }
+
+    private void readUnlock(){
+        lock.readLock().unlock();
+    }
+
+    //Write lock with the shard data loaded, callers set dirty themselves once they actually changed something
+    private void writeLock(){
+        lastAccess = TPSavedData.getTicks();
+        lock.writeLock().lock();
+        if(!loaded)
+            TPSavedData.getData().loadTeam(this);
+    }
+
+    private void writeUnlock(){
+        lock.writeLock().unlock();
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
 
-        this.knowledge.addAll(tag.getList("knowledge", NBT.TAG_COMPOUND).stream().map(t -> ItemInfo.read(((CompoundNBT)t))).filter(Objects::nonNull).collect(Collectors.toList()));
-        this.emc = new BigInteger(tag.getString("emc"));
-        this.fullKnowledge = tag.getBoolean("fullKnowledge");
+    public int getLastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * Drops the knowledge and emc of a team that has been saved, they are read back from its shard on the next access
+     */
+    public boolean evict(){
+        lock.writeLock().lock();
+        try {
+            if(!loaded || dirty)
+                return false;
+            knowledge.clear();
+            emc.set(0);
+            fullKnowledge = false;
+            loaded = false;
+            knowledgeGeneration++;
+            knowledgeSnapshot = null;
+            fullKnowledgeCache = null;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     public UUID getUUID() {
@@ -55,134 +166,689 @@ public class TPTeam {
     }
 
     public void addMemberWithKnowledge(TPTeam originalTeam, PlayerEntity player){
-        markDirty();
-        addMember(TeamProjectEBackport.getPlayerUUID(player));
-        if(originalTeam.getOwner().equals(TeamProjectEBackport.getPlayerUUID(player))){
-            setEmc(getEmc().add(originalTeam.getEmc()));
-            originalTeam.setEmc(BigInteger.ZERO);
+        UUID uuid = TeamProjectEBackport.getPlayerUUID(player);
+        addMember(uuid);
+        if(originalTeam.getOwner().equals(uuid)){
+            addEmc(originalTeam.takeEmc());
+            TPSync.emcChanged(this);
             if(originalTeam.hasFullKnowledge()) {
                 setFullKnowledge(true);
                 originalTeam.setFullKnowledge(false);
+                TPSync.requestFullSync(this);
             }
-            knowledge.addAll(originalTeam.getKnowledge());
+            //The rest of the team only gets the items that are new to them
+            TPSync.knowledgeChanged(this, addAllKnowledge(originalTeam.getKnowledge()));
             originalTeam.clearKnowledge();
         }
     }
 
     public void addMember(UUID uuid){
-        markDirty();
-        TPSavedData.getData().invalidateCache(uuid);
-        members.add(uuid);
+        markMembersDirty();
+        lock.writeLock().lock();
+        try {
+            members.add(uuid);
+            TPSavedData.getData().indexMember(uuid, this);
+            TPJournal.memberAdded(this, uuid);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        rosterChanged();
     }
 
     public void removeMember(UUID uuid){
-        markDirty();
-        TPSavedData.getData().invalidateCache(uuid);
-        if(owner.equals(uuid)){
-            if(members.isEmpty()){
-                TPSavedData.getData().TEAMS.remove(teamUUID);
-                return;
+        markMembersDirty();
+        lock.writeLock().lock();
+        try {
+            if(owner.equals(uuid)){
+                if(members.isEmpty()){
+                    TPSavedData.getData().removeTeam(this);
+                    return;
+                }
+                UUID newOwner = Lists.newArrayList(members).get(ThreadLocalRandom.current().nextInt(members.size()));
+                owner = newOwner;
+                members.remove(newOwner);
+                //Logged as a transfer followed by a plain leave so replaying it picks the same owner
+                TPJournal.ownerChanged(this, newOwner);
             }
-            UUID newOwner = members.get(ThreadLocalRandom.current().nextInt(members.size()));
-            owner = newOwner;
-            members.remove(newOwner);
+            else if(!members.remove(uuid))
+                return;
+            TPSavedData.getData().unindexMember(uuid, this);
+            TPJournal.memberRemoved(this, uuid);
+        } finally {
+            lock.writeLock().unlock();
         }
-        else
-            members.remove(uuid);
+        rosterChanged();
     }
 
     public void transferOwner(UUID newOwner){
-        if(owner.equals(newOwner) || !members.contains(newOwner))
-            return;
-        members.add(owner);
-        owner = newOwner;
+        lock.writeLock().lock();
+        try {
+            if(owner.equals(newOwner) || !members.contains(newOwner))
+                return;
+            markMembersDirty();
+            //Both players stay in the team so the member index doesn't change
+            members.remove(newOwner);
+            members.add(owner);
+            owner = newOwner;
+            TPJournal.ownerChanged(this, newOwner);
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     public List<UUID> getMembers(){
-        return new ArrayList<UUID>(members);
+        lock.readLock().lock();
+        try {
+            return new ArrayList<UUID>(members);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean isMember(UUID uuid){
+        lock.readLock().lock();
+        try {
+            return members.contains(uuid);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //Owner or member
+    public boolean contains(UUID uuid){
+        return owner.equals(uuid) || isMember(uuid);
+    }
+
+    /**
+     * The owner and members that are online, the list must not be modified
+     */
+    public List<ServerPlayerEntity> getOnline(){
+        List<ServerPlayerEntity> players = online;
+        if(players != null)
+            return players;
+        MinecraftServer server = ServerLifecycleHooks.getCurrentServer();
+        if(server == null)
+            return Collections.emptyList();
+        //Never called with the team lock held, membership changes take the roster lock only after releasing it
+        synchronized (rosterLock) {
+            if(online == null)
+                online = Collections.unmodifiableList(TeamProjectEBackport.getAllOnline(getAll()));
+            return online;
+        }
+    }
+
+    public void playerOnline(ServerPlayerEntity player){
+        UUID uuid = TeamProjectEBackport.getPlayerUUID(player);
+        synchronized (rosterLock) {
+            if(online == null)
+                return;
+            //Respawning replaces the player entity, so drop the old one first
+            List<ServerPlayerEntity> players = new ArrayList<>(online.size() + 1);
+            for (ServerPlayerEntity p : online)
+                if(!TeamProjectEBackport.getPlayerUUID(p).equals(uuid))
+                    players.add(p);
+            players.add(player);
+            online = Collections.unmodifiableList(players);
+        }
+    }
+
+    public void playerOffline(UUID uuid){
+        synchronized (rosterLock) {
+            if(online == null)
+                return;
+            List<ServerPlayerEntity> players = new ArrayList<>(online);
+            if(players.removeIf(p -> TeamProjectEBackport.getPlayerUUID(p).equals(uuid)))
+                online = Collections.unmodifiableList(players);
+        }
+    }
+
+    //Rebuilt on the next use, a roster built before the change would miss it
+    private void rosterChanged(){
+        synchronized (rosterLock) {
+            online = null;
+        }
     }
 
     public List<UUID> getAll(){
-        return Stream.concat(Stream.of(owner),members.stream()).collect(Collectors.toList());
+        lock.readLock().lock();
+        try {
+            return Stream.concat(Stream.of(owner),members.stream()).collect(Collectors.toList());
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
 
     public boolean addKnowledge(ItemInfo info){
-        markDirty();
-        return knowledge.add(info);
+        writeLock();
+        try {
+            if(!knowledge.add(info))
+                return false;
+            dirty = true;
+            publishKnowledge();
+            TPJournal.knowledgeChanged(this, info, true);
+            return true;
+        } finally {
+            writeUnlock();
+        }
+    }
+
+    /**
+     * Adds the items as one change, the snapshot is only published once. Returns the items that were new to the team
+     */
+    public List<ItemInfo> addAllKnowledge(Collection<ItemInfo> infos){
+        writeLock();
+        try {
+            List<ItemInfo> learned = new ArrayList<>();
+            for (ItemInfo info : infos) {
+                if(knowledge.add(info)) {
+                    TPJournal.knowledgeChanged(this, info, true);
+                    learned.add(info);
+                }
+            }
+            if(!learned.isEmpty()) {
+                dirty = true;
+                publishKnowledge();
+            }
+            return learned;
+        } finally {
+            writeUnlock();
+        }
     }
 
-    public void removeKnowledge(ItemInfo info){
-        markDirty();
-        knowledge.remove(info);
+    public boolean removeKnowledge(ItemInfo info){
+        writeLock();
+        try {
+            if(!knowledge.remove(info))
+                return false;
+            dirty = true;
+            publishKnowledge();
+            TPJournal.knowledgeChanged(this, info, false);
+            return true;
+        } finally {
+            writeUnlock();
+        }
     }
 
     public void clearKnowledge(){
-        markDirty();
-        knowledge.clear();
+        writeLock();
+        try {
+            if(knowledge.isEmpty())
+                return;
+            knowledge.clear();
+            dirty = true;
+            publishKnowledge();
+            TPJournal.knowledgeCleared(this);
+        } finally {
+            writeUnlock();
+        }
+    }
+
+    //Called with the write lock held after a change, readers see the new set as soon as the lock is released
+    private void publishKnowledge(){
+        knowledgeGeneration++;
+        knowledgeSnapshot = knowledge.isEmpty() ? Collections.emptySet() : Collections.unmodifiableSet(knowledge.copy());
+        fullKnowledgeCache = null;
     }
 
+    /**
+     * Changes whenever the extra knowledge, the full knowledge flag or the EMC mappings change
+     */
+    public long getKnowledgeGeneration() {
+        return knowledgeGeneration + mappingGeneration;
+    }
+
+    /**
+     * Every mapped item plus the extra knowledge of this team, rebuilt only after a change
+     */
+    public Set<ItemInfo> getFullKnowledge() {
+        FullKnowledge cache = fullKnowledgeCache;
+        long mapping = mappingGeneration;
+        long generation = knowledgeGeneration;
+        if(cache != null && cache.mapping == mapping && cache.generation == generation && loaded)
+            return cache.knowledge;
+        Set<ItemInfo> allKnowledge = EMCMappingHandler.getMappedItems();
+        //Make sure we include any extra items they have learned such as various enchanted items.
+        allKnowledge.addAll(getKnowledge());
+        cache = new FullKnowledge(Collections.unmodifiableSet(allKnowledge), mapping, generation);
+        fullKnowledgeCache = cache;
+        return cache.knowledge;
+    }
 
+    private static class FullKnowledge {
+
+        private final Set<ItemInfo> knowledge;
+        private final long mapping;
+        private final long generation;
+
+        private FullKnowledge(Set<ItemInfo> knowledge, long mapping, long generation) {
+            this.knowledge = knowledge;
+            this.mapping = mapping;
+            this.generation = generation;
+        }
+    }
+
+    public static void onEmcRemap(){
+        mappingGeneration++;
+    }
+
+
+    public boolean hasKnowledge(ItemInfo info) {
+        return getKnowledge().contains(info);
+    }
+
+    public int getKnowledgeCount() {
+        return getKnowledge().size();
+    }
+
+    //Size of the loaded knowledge without counting as an access, 0 while evicted
+    int knowledgeSize() {
+        Set<ItemInfo> snapshot = knowledgeSnapshot;
+        return snapshot == null ? 0 : snapshot.size();
+    }
+
+    /**
+     * Immutable snapshot of the knowledge, safe to keep and iterate on any thread. The same instance is returned until the knowledge changes
+     */
     public Set<ItemInfo> getKnowledge() {
-        return new HashSet<>(knowledge);
+        lastAccess = TPSavedData.getTicks();
+        Set<ItemInfo> snapshot = knowledgeSnapshot;
+        //Only missing while evicted, loading the shard publishes it again
+        while(snapshot == null){
+            ensureLoaded();
+            snapshot = knowledgeSnapshot;
+        }
+        return snapshot;
     }
 
     public void setEmc(BigInteger emc) {
-        markDirty();
-        this.emc = emc;
+        writeLock();
+        try {
+            if(this.emc.compareTo(emc) == 0)
+                return;
+            this.emc.set(emc);
+            dirty = true;
+            TPJournal.emcChanged(this, this.emc);
+        } finally {
+            writeUnlock();
+        }
+    }
+
+    public void addEmc(long amount) {
+        if(amount == 0)
+            return;
+        writeLock();
+        try {
+            emc.add(amount);
+            dirty = true;
+            TPJournal.emcChanged(this, emc);
+        } finally {
+            writeUnlock();
+        }
+    }
+
+    public void addEmc(BigInteger amount) {
+        if(amount.signum() == 0)
+            return;
+        writeLock();
+        try {
+            emc.add(amount);
+            dirty = true;
+            TPJournal.emcChanged(this, emc);
+        } finally {
+            writeUnlock();
+        }
+    }
+
+    public void removeEmc(long amount) {
+        if(amount == 0)
+            return;
+        writeLock();
+        try {
+            emc.subtract(amount);
+            dirty = true;
+            TPJournal.emcChanged(this, emc);
+        } finally {
+            writeUnlock();
+        }
+    }
+
+    public void removeEmc(BigInteger amount) {
+        if(amount.signum() == 0)
+            return;
+        writeLock();
+        try {
+            emc.subtract(amount);
+            dirty = true;
+            TPJournal.emcChanged(this, emc);
+        } finally {
+            writeUnlock();
+        }
+    }
+
+    /**
+     * Removes the amount only if the team has enough emc, as one atomic step
+     */
+    public boolean tryRemoveEmc(long amount) {
+        writeLock();
+        try {
+            if(emc.compareTo(amount) < 0)
+                return false;
+            if(amount != 0) {
+                emc.subtract(amount);
+                dirty = true;
+                TPJournal.emcChanged(this, emc);
+            }
+            return true;
+        } finally {
+            writeUnlock();
+        }
+    }
+
+    public boolean tryRemoveEmc(BigInteger amount) {
+        writeLock();
+        try {
+            if(emc.compareTo(amount) < 0)
+                return false;
+            if(amount.signum() != 0) {
+                emc.subtract(amount);
+                dirty = true;
+                TPJournal.emcChanged(this, emc);
+            }
+            return true;
+        } finally {
+            writeUnlock();
+        }
+    }
+
+    //Empties the balance and returns what was in it
+    public BigInteger takeEmc() {
+        writeLock();
+        try {
+            BigInteger taken = emc.get();
+            if(taken.signum() == 0)
+                return taken;
+            emc.set(0);
+            dirty = true;
+            TPJournal.emcChanged(this, emc);
+            return taken;
+        } finally {
+            writeUnlock();
+        }
     }
 
     public BigInteger getEmc() {
-        return emc;
+        readLock();
+        try {
+            return emc.get();
+        } finally {
+            readUnlock();
+        }
+    }
+
+    public boolean hasEmc(long amount) {
+        readLock();
+        try {
+            return emc.compareTo(amount) >= 0;
+        } finally {
+            readUnlock();
+        }
+    }
+
+    public boolean hasEmc(BigInteger amount) {
+        readLock();
+        try {
+            return emc.compareTo(amount) >= 0;
+        } finally {
+            readUnlock();
+        }
+    }
+
+    public int compareEmc(long amount) {
+        readLock();
+        try {
+            return emc.compareTo(amount);
+        } finally {
+            readUnlock();
+        }
+    }
+
+    public int compareEmc(BigInteger amount) {
+        readLock();
+        try {
+            return emc.compareTo(amount);
+        } finally {
+            readUnlock();
+        }
     }
 
     public void setFullKnowledge(boolean fullKnowledge) {
-        markDirty();
-        this.fullKnowledge = fullKnowledge;
+        writeLock();
+        try {
+            if(this.fullKnowledge == fullKnowledge)
+                return;
+            knowledgeGeneration++;
+            this.fullKnowledge = fullKnowledge;
+            dirty = true;
+            TPJournal.fullKnowledgeChanged(this, fullKnowledge);
+        } finally {
+            writeUnlock();
+        }
+    }
+
+    /**
+     * Journal replay, runs before the store is published so it only touches this team and the given store and doesn't journal again
+     */
+    void replayMember(TPSavedData data, UUID uuid, boolean added){
+        lock.writeLock().lock();
+        try {
+            if(added && !owner.equals(uuid) && members.add(uuid))
+                data.PLAYER_TEAMS.put(uuid, this);
+            else if(!added && members.remove(uuid))
+                data.PLAYER_TEAMS.remove(uuid, this);
+            else
+                return;
+            data.setDirty();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void replayOwner(TPSavedData data, UUID newOwner){
+        lock.writeLock().lock();
+        try {
+            if(owner.equals(newOwner) || !members.remove(newOwner))
+                return;
+            members.add(owner);
+            owner = newOwner;
+            data.setDirty();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void replayEmc(TPSavedData data, BigInteger emc){
+        replayLock(data);
+        try {
+            this.emc.set(emc);
+            dirty = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void replayKnowledge(TPSavedData data, ItemInfo info, boolean learned){
+        replayLock(data);
+        try {
+            if(learned ? knowledge.add(info) : knowledge.remove(info)) {
+                dirty = true;
+                publishKnowledge();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void replayClearKnowledge(TPSavedData data){
+        replayLock(data);
+        try {
+            if(knowledge.isEmpty())
+                return;
+            knowledge.clear();
+            dirty = true;
+            publishKnowledge();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void replayFullKnowledge(TPSavedData data, boolean fullKnowledge){
+        replayLock(data);
+        try {
+            if(this.fullKnowledge == fullKnowledge)
+                return;
+            knowledgeGeneration++;
+            this.fullKnowledge = fullKnowledge;
+            dirty = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //Write lock with the shard loaded from the given store rather than the published one
+    private void replayLock(TPSavedData data){
+        lock.writeLock().lock();
+        if(!loaded)
+            data.loadTeam(this);
     }
 
     public boolean hasFullKnowledge() {
-        return fullKnowledge;
+        readLock();
+        try {
+            return fullKnowledge;
+        } finally {
+            readUnlock();
+        }
     }
 
     public void markDirty(){
+        dirty = true;
+    }
+
+    //Membership lives in the manifest, which is only rewritten when it changes
+    public void markMembersDirty(){
         TPSavedData.getData().setDirty();
     }
 
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    public void setDirty(boolean dirty) {
+        this.dirty = dirty;
+    }
+
     public CompoundNBT save(){
+        return saveData(saveMembers());
+    }
+
+    public CompoundNBT saveMembers(){
         CompoundNBT tag = new CompoundNBT();
         tag.putUUID("uuid", teamUUID);
-        tag.putUUID("owner", owner);
         ListNBT list = new ListNBT();
-        for (UUID member : members) {
-            CompoundNBT t = new CompoundNBT();
-            t.putUUID("uuid", member);
-            list.add(t);
+        lock.readLock().lock();
+        try {
+            tag.putUUID("owner", owner);
+            for (UUID member : members) {
+                CompoundNBT t = new CompoundNBT();
+                t.putUUID("uuid", member);
+                list.add(t);
+            }
+        } finally {
+            lock.readLock().unlock();
         }
         tag.put("members", list);
+        return tag;
+    }
+
+    public CompoundNBT saveData(CompoundNBT tag){
+        readLock();
+        try {
+            return writeData(tag, knowledge, emc.get(), fullKnowledge);
+        } finally {
+            readUnlock();
+        }
+    }
 
+    private static CompoundNBT writeData(CompoundNBT tag, Set<ItemInfo> knowledge, BigInteger emc, boolean fullKnowledge){
         ListNBT itemInfos = new ListNBT();
         for (ItemInfo info : knowledge)
             itemInfos.add(info.write(new CompoundNBT()));
         tag.put("knowledge", itemInfos);
         tag.putString("emc", emc.toString());
         tag.putBoolean("fullKnowledge", fullKnowledge);
-
         return tag;
     }
 
+    /**
+     * Copies the shard data and clears the dirty flag in one step, null if nothing changed since the last snapshot
+     */
+    @Nullable
+    public Snapshot snapshotIfDirty(){
+        lock.writeLock().lock();
+        try {
+            if(!dirty)
+                return null;
+            dirty = false;
+            return new Snapshot(teamUUID, knowledge.copy(), emc.get(), fullKnowledge);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Copy of a team's shard data that can be written from another thread
+     */
+    public static class Snapshot {
+
+        private final UUID teamUUID;
+        private final TPKnowledge knowledge;
+        private final BigInteger emc;
+        private final boolean fullKnowledge;
+
+        private Snapshot(UUID teamUUID, TPKnowledge knowledge, BigInteger emc, boolean fullKnowledge) {
+            this.teamUUID = teamUUID;
+            this.knowledge = knowledge;
+            this.emc = emc;
+            this.fullKnowledge = fullKnowledge;
+        }
+
+        public UUID getUUID() {
+            return teamUUID;
+        }
+
+        public CompoundNBT save() {
+            return writeData(new CompoundNBT(), knowledge, emc, fullKnowledge);
+        }
+    }
+
 
     public static TPTeam getOrCreateTeam(UUID uuid){
         TPTeam team = getTeamByMember(uuid);
-        if(team == null)
-            team = createTeam(uuid);
-        return team;
+        if(team != null)
+            return team;
+        //Two threads asking for the same new player must end up with the same team
+        synchronized (TPTeam.class) {
+            team = getTeamByMember(uuid);
+            if(team == null)
+                team = createTeam(uuid);
+            return team;
+        }
     }
 
     public static TPTeam createTeam(UUID uuid){
         TPTeam team = new TPTeam(uuid);
-        TPSavedData.getData().TEAMS.put(team.getUUID(), team);
-        TPSavedData.getData().setDirty();
+        TPSavedData.getData().addTeam(team);
         return team;
     }
 
@@ -195,19 +861,7 @@ public class TPTeam {
     }
 
     public static TPTeam getTeamByMember(UUID uuid){
-        UUID teamUUID = TPSavedData.getData().PLAYER_TEAM_CACHE.get(uuid);
-
-        if(teamUUID == null)
-            for (Map.Entry<UUID, TPTeam> entry : TPSavedData.getData().TEAMS.entrySet()) {
-                if(entry.getValue().getAll().contains(uuid)) {
-                    teamUUID = entry.getKey();
-                    TPSavedData.getData().PLAYER_TEAM_CACHE.put(uuid, teamUUID);
-                    break;
-                }
-            }
-
-        if(teamUUID != null)
-            return TPSavedData.getData().TEAMS.get(teamUUID);
-        return null;
+        TPMetrics.teamLookup();
+        return TPSavedData.getData().PLAYER_TEAMS.get(uuid);
     }
 }
\ No newline at end of file
@@ -0,0 +1,154 @@
+package com.button.teamprojectebackport;
+
+import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import net.minecraft.command.CommandSource;
+import net.minecraft.nbt.CompoundNBT;
+import net.minecraft.nbt.INBT;
+import net.minecraft.nbt.JsonToNBT;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.text.StringTextComponent;
+import net.minecraft.util.text.TranslationTextComponent;
+import net.minecraft.world.storage.FolderName;
+import net.minecraftforge.common.util.Constants.NBT;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Exports and imports teams as one SNBT line per team, read and written one team at a time on a background thread
+ */
+public class TPTransfer {
+
+    private static final int BATCH_SIZE = 256;
+    private static final AtomicBoolean RUNNING = new AtomicBoolean();
+
+    public static Path getFile(MinecraftServer server, String name) {
+        return server.getWorldPath(FolderName.ROOT).resolve("teamprojectebackport_exports").resolve(name + ".snbt");
+    }
+
+    public static boolean export(CommandSource source, String name) {
+        MinecraftServer server = source.getServer();
+        Path file = getFile(server, name);
+        //Only the list of teams is taken on the server thread, each team is read when it is written
+        List<TPTeam> teams = new ArrayList<>(TPSavedData.getData().TEAMS.values());
+        return start(source, "Export", () -> {
+            Files.createDirectories(file.getParent());
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            int exported = 0;
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                for (TPTeam team : teams) {
+                    //Deleted since the export started
+                    if (TPTeam.getTeam(team.getUUID()) != team)
+                        continue;
+                    writer.write(TPSavedData.getData().exportTeam(team).toString());
+                    writer.newLine();
+                    exported++;
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            int count = exported;
+            server.execute(() -> source.sendSuccess(new TranslationTextComponent("commands.teamprojectebackport.export.success", count, file.getFileName().toString()), true));
+        });
+    }
+
+    /**
+     * Adds every team of the file whose id and players are not in use yet, the others are skipped
+     */
+    public static boolean importTeams(CommandSource source, String name) {
+        MinecraftServer server = source.getServer();
+        Path file = getFile(server, name);
+        if (!Files.isRegularFile(file)) {
+            source.sendFailure(new TranslationTextComponent("commands.teamprojectebackport.import.not_found", file.getFileName().toString()));
+            return false;
+        }
+        return start(source, "Import", () -> {
+            int[] counts = new int[2];
+            List<CompoundNBT> batch = new ArrayList<>(BATCH_SIZE);
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                int lineNumber = 0;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    if (line.trim().isEmpty())
+                        continue;
+                    try {
+                        batch.add(JsonToNBT.parseTag(line));
+                    } catch (CommandSyntaxException e) {
+                        throw new IOException("Invalid team on line " + lineNumber + ": " + e.getMessage(), e);
+                    }
+                    if (batch.size() == BATCH_SIZE)
+                        importBatch(server, batch, counts);
+                }
+            }
+            importBatch(server, batch, counts);
+            server.execute(() -> source.sendSuccess(new TranslationTextComponent("commands.teamprojectebackport.import.success", counts[0], counts[1]), true));
+        });
+    }
+
+    //Teams are parsed on the import thread, only adding them happens on the server thread. Waiting for it keeps at most one batch in memory
+    private static void importBatch(MinecraftServer server, List<CompoundNBT> batch, int[] counts) {
+        if (batch.isEmpty())
+            return;
+        CompletableFuture.runAsync(() -> {
+            for (CompoundNBT tag : batch)
+                counts[importTeam(tag) ? 0 : 1]++;
+        }, server).join();
+        batch.clear();
+    }
+
+    private static boolean importTeam(CompoundNBT tag) {
+        if (!tag.hasUUID("uuid") || !tag.hasUUID("owner") || TPTeam.getTeam(tag.getUUID("uuid")) != null)
+            return false;
+        List<UUID> players = new ArrayList<>();
+        players.add(tag.getUUID("owner"));
+        for (INBT member : tag.getList("members", NBT.TAG_COMPOUND))
+            players.add(((CompoundNBT) member).getUUID("uuid"));
+        for (UUID player : players)
+            if (TPTeam.isInTeam(player))
+                return false;
+        //Teams always come with their data, so this loads the team right away
+        if (!tag.contains("emc"))
+            tag.putString("emc", "0");
+        TPTeam team = new TPTeam(tag);
+        team.setDirty(true);
+        TPSavedData.getData().addTeam(team);
+        return true;
+    }
+
+    private static boolean start(CommandSource source, String action, IOTask task) {
+        if (!RUNNING.compareAndSet(false, true)) {
+            source.sendFailure(new TranslationTextComponent("commands.teamprojectebackport.transfer.running"));
+            return false;
+        }
+        MinecraftServer server = source.getServer();
+        CompletableFuture.runAsync(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                TeamProjectEBackport.LOGGER.error("{} of team data failed", action, e);
+                server.execute(() -> source.sendFailure(new StringTextComponent(action + " failed: " + e.getMessage())));
+            } finally {
+                RUNNING.set(false);
+            }
+        }, runnable -> {
+            Thread thread = new Thread(runnable, "TeamProjectE " + action);
+            thread.setDaemon(true);
+            thread.start();
+        });
+        return true;
+    }
+
+    private interface IOTask {
+        void run() throws IOException;
+    }
+}
@@ -3,20 +3,13 @@ package com.button.teamprojectebackport;
 import com.google.common.base.Suppliers;
 import moze_intel.projecte.api.ItemInfo;
 import moze_intel.projecte.api.capabilities.IKnowledgeProvider;
-import moze_intel.projecte.api.event.PlayerKnowledgeChangeEvent;
-import moze_intel.projecte.emc.EMCMappingHandler;
-import moze_intel.projecte.emc.nbt.NBTManager;
 import moze_intel.projecte.gameObjs.items.Tome;
 import moze_intel.projecte.network.PacketHandler;
-import moze_intel.projecte.network.packets.to_client.knowledge.KnowledgeSyncChangePKT;
-import moze_intel.projecte.network.packets.to_client.knowledge.KnowledgeSyncEmcPKT;
 import moze_intel.projecte.network.packets.to_client.knowledge.KnowledgeSyncInputsAndLocksPKT;
-import moze_intel.projecte.network.packets.to_client.knowledge.KnowledgeSyncPKT;
 import net.minecraft.entity.player.ServerPlayerEntity;
 import net.minecraft.item.ItemStack;
 import net.minecraft.nbt.CompoundNBT;
 import net.minecraft.nbt.ListNBT;
-import net.minecraftforge.common.MinecraftForge;
 import net.minecraftforge.items.IItemHandlerModifiable;
 import net.minecraftforge.items.ItemStackHandler;
 import javax.annotation.Nullable;
@@ -32,88 +25,141 @@ public class TeamKnowledgeProvider implements IKnowledgeProvider {
 
     private final ItemStackHandler inputLocks = new ItemStackHandler(9);
 
+    private volatile TeamBinding binding;
+    //Offline providers of the same team share one binding through TPOfflineProviders
+    private final boolean offline;
+
     public TeamKnowledgeProvider(@Nonnull ServerPlayerEntity player) {
         this.playerUUID = Suppliers.memoize(() -> TeamProjectEBackport.getPlayerUUID(player));
+        this.offline = false;
     }
 
     public TeamKnowledgeProvider(UUID uuid) {
+        this(uuid, false);
+    }
+
+    TeamKnowledgeProvider(UUID uuid, boolean offline) {
         this.playerUUID = () -> uuid;
+        this.offline = offline;
     }
 
-    private void fireChangedEvent() {
-        getTeam().getAll()
-                .forEach(uuid -> MinecraftForge.EVENT_BUS.post(new PlayerKnowledgeChangeEvent(uuid)));
+    private void fireChangedEvent(TPTeam team) {
+        //Posted once per player at the end of the tick no matter how many changes happen
+        TPSync.fireChangedEvent(team);
     }
 
+    /**
+     * The player's team, or null if they don't have one yet. Only looked up again after someone joins or leaves a team
+     */
+    @Nullable
     private TPTeam getTeam(){
-        return TPTeam.getOrCreateTeam(playerUUID.get());
+        long generation = TPSavedData.getMembershipGeneration();
+        TeamBinding binding = this.binding;
+        if (binding == null || binding.generation != generation) {
+            TPMetrics.teamCacheMiss();
+            binding = bind(TPTeam.getTeamByMember(playerUUID.get()), generation);
+            this.binding = binding;
+        } else
+            TPMetrics.teamCacheHit();
+        return binding.team;
+    }
+
+    //Only used for changes, reads never create a team
+    private TPTeam getOrCreateTeam(){
+        TPTeam team = getTeam();
+        if (team == null) {
+            team = TPTeam.getOrCreateTeam(playerUUID.get());
+            binding = bind(team, TPSavedData.getMembershipGeneration());
+        }
+        return team;
+    }
+
+    private TeamBinding bind(@Nullable TPTeam team, long generation) {
+        if (offline && team != null)
+            return TPOfflineProviders.getBinding(team, generation);
+        return new TeamBinding(team, generation);
+    }
+
+    @Nullable
+    TeamBinding getBinding() {
+        return binding;
+    }
+
+    static class TeamBinding {
+
+        @Nullable
+        final TPTeam team;
+        final long generation;
+
+        TeamBinding(@Nullable TPTeam team, long generation) {
+            this.team = team;
+            this.generation = generation;
+        }
     }
 
     @Override
     public boolean hasFullKnowledge() {
-        return getTeam().hasFullKnowledge();
+        TPTeam team = getTeam();
+        return team != null && team.hasFullKnowledge();
     }
 
     @Override
     public void setFullKnowledge(boolean fullKnowledge) {
-        boolean changed = hasFullKnowledge() != fullKnowledge;
-        getTeam().setFullKnowledge(fullKnowledge);
+        TPTeam team = getTeam();
+        if (team == null) {
+            if (!fullKnowledge)
+                return;
+            team = getOrCreateTeam();
+        }
+        boolean changed = team.hasFullKnowledge() != fullKnowledge;
+        team.setFullKnowledge(fullKnowledge);
         if (changed) {
-            fireChangedEvent();
-            //sync(playerUUID);
+            fireChangedEvent(team);
+            TPSync.requestFullSync(team);
         }
     }
 
     @Override
     public void clearKnowledge() {
-        boolean hasKnowledge = hasFullKnowledge() || !getTeam().getKnowledge().isEmpty();
-        getTeam().clearKnowledge();
-        getTeam().setFullKnowledge(false);
+        TPTeam team = getTeam();
+        if (team == null)
+            return;
+        boolean hasKnowledge = team.hasFullKnowledge() || team.getKnowledgeCount() > 0;
+        team.clearKnowledge();
+        team.setFullKnowledge(false);
         if (hasKnowledge) {
             //If we previously had any knowledge fire the fact that our knowledge changed
-            fireChangedEvent();
-            //sync(playerUUID);
+            fireChangedEvent(team);
+            TPSync.requestFullSync(team);
         }
     }
 
-    @Nullable
-    private ItemInfo getIfPersistent(@Nonnull ItemInfo info) {
-        if (!info.hasNBT() || EMCMappingHandler.hasEmcValue(info)) {
-            //If we have no NBT or the base mapping has an emc value for our item with the given NBT
-            // then we don't have an extended state
-            return null;
-        }
-        ItemInfo cleanedInfo = NBTManager.getPersistentInfo(info);
-        if (cleanedInfo.hasNBT() && !EMCMappingHandler.hasEmcValue(cleanedInfo)) {
-            //If we still have NBT after unimportant parts being stripped and it doesn't
-            // directly have an EMC value, then we it has some persistent information
-            return cleanedInfo;
-        }
-        return null;
-    }
-
     @Override
     public boolean hasKnowledge(@Nonnull ItemInfo info) {
-        if (getTeam().hasFullKnowledge()) {
+        TPTeam team = getTeam();
+        if (team == null)
+            return false;
+        if (team.hasFullKnowledge()) {
             //If we have all knowledge, check if the item has extra data and
             // may not actually be in our knowledge set but can be added to it
-            ItemInfo persistentInfo = getIfPersistent(info);
-            return persistentInfo == null || getTeam().getKnowledge().contains(persistentInfo);
+            ItemInfo persistentInfo = TPPersistentInfo.getIfPersistent(info);
+            return persistentInfo == null || team.hasKnowledge(persistentInfo);
         }
-        return getTeam().getKnowledge().contains(NBTManager.getPersistentInfo(info));
+        return team.hasKnowledge(TPPersistentInfo.getPersistentInfo(info));
     }
 
     @Override
     public boolean addKnowledge(@Nonnull ItemInfo info) {
-        if (getTeam().hasFullKnowledge()) {
-            ItemInfo persistentInfo = getIfPersistent(info);
+        TPTeam team = getOrCreateTeam();
+        if (team.hasFullKnowledge()) {
+            ItemInfo persistentInfo = TPPersistentInfo.getIfPersistent(info);
             if (persistentInfo == null) {
                 //If the item doesn't have extra data, and we have all knowledge, don't actually add any
                 return false;
             }
             //If it does have extra data, pretend we don't have full knowledge and try adding it as what we have is persistent.
             // Note: We ignore the tome here being a separate entity because it should not have any persistent info
-            return tryAdd(persistentInfo);
+            return tryAdd(team, persistentInfo);
         }
         if (info.getItem() instanceof Tome) {
             if (info.hasNBT()) {
@@ -123,19 +169,19 @@ public class TeamKnowledgeProvider implements IKnowledgeProvider {
             //Note: We don't bother checking if we already somehow know the tome without having full knowledge
             // as we are learning it without any NBT which means that it doesn't have any extra persistent info
             // so can just check if it is already in it by nature of it being a set
-            getTeam().addKnowledge(info);
-            getTeam().setFullKnowledge(true);
-            fireChangedEvent();
-            sync(playerUUID.get());
+            team.addKnowledge(info);
+            team.setFullKnowledge(true);
+            fireChangedEvent(team);
+            TPSync.requestFullSync(team);
             return true;
         }
-        return tryAdd(NBTManager.getPersistentInfo(info));
+        return tryAdd(team, TPPersistentInfo.getPersistentInfo(info));
     }
 
-    private boolean tryAdd(@Nonnull ItemInfo cleanedInfo) {
-        if (getTeam().addKnowledge(cleanedInfo)) {
-            fireChangedEvent();
-            //syncKnowledgeChange(playerUUID, cleanedInfo, true);
+    private boolean tryAdd(TPTeam team, @Nonnull ItemInfo cleanedInfo) {
+        if (team.addKnowledge(cleanedInfo)) {
+            fireChangedEvent(team);
+            TPSync.knowledgeChanged(team, cleanedInfo, true);
             return true;
         }
         return false;
@@ -143,31 +189,34 @@ public class TeamKnowledgeProvider implements IKnowledgeProvider {
 
     @Override
     public boolean removeKnowledge(@Nonnull ItemInfo info) {
-        if (getTeam().hasFullKnowledge()) {
+        TPTeam team = getTeam();
+        if (team == null)
+            return false;
+        if (team.hasFullKnowledge()) {
             if (info.getItem() instanceof Tome) {
                 //If we have full knowledge and are trying to remove the tome allow it
                 if (info.hasNBT()) {
                     //Make sure we don't have any NBT as it doesn't have any effect for the tome
                     info = ItemInfo.fromItem(info.getItem());
                 }
-                getTeam().removeKnowledge(info);
-                getTeam().setFullKnowledge(false);
-                fireChangedEvent();
-                //sync(playerUUID);
+                team.removeKnowledge(info);
+                team.setFullKnowledge(false);
+                fireChangedEvent(team);
+                TPSync.requestFullSync(team);
                 return true;
             }
             //Otherwise check if we have any persistent information, and if so try removing that
             // as we may have it known as an "extra" item
-            ItemInfo persistentInfo = getIfPersistent(info);
-            return persistentInfo != null && tryRemove(persistentInfo);
+            ItemInfo persistentInfo = TPPersistentInfo.getIfPersistent(info);
+            return persistentInfo != null && tryRemove(team, persistentInfo);
         }
-        return tryRemove(NBTManager.getPersistentInfo(info));
+        return tryRemove(team, TPPersistentInfo.getPersistentInfo(info));
     }
 
-    private boolean tryRemove(@Nonnull ItemInfo cleanedInfo) {
-        if (getTeam().getKnowledge().remove(cleanedInfo)) {
-            fireChangedEvent();
-            //syncKnowledgeChange(playerUUID, cleanedInfo, false);
+    private boolean tryRemove(TPTeam team, @Nonnull ItemInfo cleanedInfo) {
+        if (team.removeKnowledge(cleanedInfo)) {
+            fireChangedEvent(team);
+            TPSync.knowledgeChanged(team, cleanedInfo, false);
             return true;
         }
         return false;
@@ -176,13 +225,12 @@ public class TeamKnowledgeProvider implements IKnowledgeProvider {
     @Nonnull
     @Override
     public Set<ItemInfo> getKnowledge() {
-        if (getTeam().hasFullKnowledge()) {
-            Set<ItemInfo> allKnowledge = EMCMappingHandler.getMappedItems();
-            //Make sure we include any extra items they have learned such as various enchanted items.
-            allKnowledge.addAll(getTeam().getKnowledge());
-            return Collections.unmodifiableSet(allKnowledge);
-        }
-        return Collections.unmodifiableSet(getTeam().getKnowledge());
+        TPTeam team = getTeam();
+        if (team == null)
+            return Collections.emptySet();
+        if (team.hasFullKnowledge())
+            return team.getFullKnowledge();
+        return team.getKnowledge();
     }
 
     @Nonnull
@@ -193,13 +241,15 @@ public class TeamKnowledgeProvider implements IKnowledgeProvider {
 
     @Override
     public BigInteger getEmc() {
-        return getTeam().getEmc();
+        TPTeam team = getTeam();
+        return team == null ? BigInteger.ZERO : team.getEmc();
     }
 
     @Override
     public void setEmc(BigInteger emc) {
-        getTeam().setEmc(emc);
-        syncEmc(playerUUID.get());
+        TPTeam team = getOrCreateTeam();
+        team.setEmc(emc);
+        TPSync.emcChanged(team);
     }
 
     @Override
@@ -207,20 +257,23 @@ public class TeamKnowledgeProvider implements IKnowledgeProvider {
         sync(TeamProjectEBackport.getPlayerUUID(player));
     }
 
+    /**
+     * Full sync for this one player, the rest of the team is kept up to date by the journal
+     */
     public void sync(UUID uuid) {
-        TeamProjectEBackport.getOnlineTeamMembers(uuid).forEach(p -> PacketHandler.sendTo(new KnowledgeSyncPKT(serializeForClient()), p));
+        //Clients always need a team to show, so this is where a player without one gets it
+        TPSync.requestFullSync(uuid.equals(playerUUID.get()) ? getOrCreateTeam() : TPTeam.getOrCreateTeam(uuid), uuid);
     }
 
-    private CompoundNBT serializeForClient(){
+    /**
+     * @param knowledge the team's knowledge as written by {@link TPSync#writeKnowledge(TPTeam)}, shared between members
+     */
+    public CompoundNBT serializeForClient(ListNBT knowledge){
         CompoundNBT properties = new CompoundNBT();
-        properties.putString("transmutationEmc", getTeam().getEmc().toString());
-        ListNBT knowledgeWrite = new ListNBT();
-        for (ItemInfo i : getTeam().getKnowledge())
-            knowledgeWrite.add(i.write(new CompoundNBT()));
-
-        properties.put("knowledge", knowledgeWrite);
+        properties.putString("transmutationEmc", getEmc().toString());
+        properties.put("knowledge", knowledge);
         properties.put("inputlock", this.inputLocks.serializeNBT());
-        properties.putBoolean("fullknowledge", getTeam().hasFullKnowledge());
+        properties.putBoolean("fullknowledge", hasFullKnowledge());
         return properties;
     }
 
@@ -231,16 +284,13 @@ public class TeamKnowledgeProvider implements IKnowledgeProvider {
     }
 
     public void syncEmc(UUID uuid){
-        TeamProjectEBackport.getOnlineTeamMembers(uuid).forEach(p -> PacketHandler.sendTo(new KnowledgeSyncEmcPKT(getEmc()), p));
+        //Coalesced with any other change this tick, the team gets the final value once at the end of it
+        TPSync.emcChanged(uuid.equals(playerUUID.get()) ? getOrCreateTeam() : TPTeam.getOrCreateTeam(uuid));
     }
 
     @Override
     public void syncKnowledgeChange(@Nonnull ServerPlayerEntity player, ItemInfo change, boolean learned) {
-        syncKnowledgeChange(TeamProjectEBackport.getPlayerUUID(player), change, learned);
-    }
-
-    public void syncKnowledgeChange(UUID uuid, ItemInfo change, boolean learned){
-        TeamProjectEBackport.getOnlineTeamMembers(uuid).forEach(p -> PacketHandler.sendTo(new KnowledgeSyncChangePKT(change, learned), p));
+        //Changes are journaled by tryAdd and tryRemove and sent to the whole team at the end of the tick
     }
 
     @Override
@@ -2,18 +2,24 @@ package com.button.teamprojectebackport;
 
 import net.minecraftforge.common.MinecraftForge;
 import net.minecraftforge.event.RegisterCommandsEvent;
+import net.minecraftforge.event.TickEvent;
 import net.minecraftforge.eventbus.api.SubscribeEvent;
 import net.minecraftforge.fml.server.ServerLifecycleHooks;
 import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.ModLoadingContext;
+import net.minecraftforge.fml.config.ModConfig;
 import org.apache.logging.log4j.LogManager;
 import net.minecraft.world.World;
 import net.minecraftforge.fml.event.server.FMLServerStoppedEvent;
 import net.minecraftforge.event.entity.EntityJoinWorldEvent;
+import net.minecraftforge.event.entity.player.PlayerEvent;
 import net.minecraft.entity.player.ServerPlayerEntity;
 import net.minecraft.entity.player.PlayerEntity;
 import moze_intel.projecte.api.ProjectEAPI;
+import moze_intel.projecte.api.event.EMCRemapEvent;
 import org.apache.logging.log4j.Logger;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.UUID;
@@ -27,8 +33,10 @@ public class TeamProjectEBackport {
 
     public TeamProjectEBackport() {
         // Register ourselves for server and other game events we are interested in
-        MinecraftForge.EVENT_BUS.register(this);
+        MinecraftForge.EVENT_BUS.register(TeamProjectEBackport.class);
         //MinecraftForge.EVENT_BUS.register(TeamProjectEBackport::onRegisterCommandEvent);
+        ModLoadingContext.get().registerConfig(ModConfig.Type.COMMON, TPConfig.SPEC);
+        TPNetwork.register();
     }
 
     @SubscribeEvent
@@ -39,13 +47,67 @@ public class TeamProjectEBackport {
     @SubscribeEvent
     public static void onServerStopped(FMLServerStoppedEvent event) {
         TPCommand.INVITATIONS.clear();
+        TPSync.clear();
+        TPChunkedSync.clear();
+        TPOfflineProviders.clear();
+        TPPersistentInfo.clear();
+        TPJournal.close();
         TPSavedData.onServerStopped();
     }
 
+    @SubscribeEvent
+    public static void onServerTick(TickEvent.ServerTickEvent event) {
+        if (event.phase == TickEvent.Phase.END) {
+            TPSync.onServerTick();
+            TPChunkedSync.onServerTick();
+            TPSavedData.onServerTick();
+            TPOfflineProviders.onServerTick();
+            TPMetrics.onServerTick();
+            TPJournal.flush();
+        }
+    }
+
+    @SubscribeEvent
+    public static void onEmcRemap(EMCRemapEvent event) {
+        TPTeam.onEmcRemap();
+        TPPersistentInfo.clear();
+    }
+
     @SubscribeEvent
     public static void onPlayerJoin(EntityJoinWorldEvent event) {
-        if (event.getWorld().dimension() == World.OVERWORLD && event.getEntity().getClass().equals(ServerPlayerEntity.class))
+        if (event.getWorld().dimension() == World.OVERWORLD && event.getEntity().getClass().equals(ServerPlayerEntity.class)) {
+            TPTeam team = TPTeam.getTeamByMember(getPlayerUUID((ServerPlayerEntity) event.getEntity()));
+            if (team != null)
+                team.ensureLoaded();
             sync((ServerPlayerEntity) event.getEntity());
+        }
+    }
+
+    @SubscribeEvent
+    public static void onPlayerLoggedIn(PlayerEvent.PlayerLoggedInEvent event) {
+        playerOnline(event.getPlayer());
+    }
+
+    @SubscribeEvent
+    public static void onPlayerRespawn(PlayerEvent.PlayerRespawnEvent event) {
+        playerOnline(event.getPlayer());
+    }
+
+    @SubscribeEvent
+    public static void onPlayerLoggedOut(PlayerEvent.PlayerLoggedOutEvent event) {
+        if (!(event.getPlayer() instanceof ServerPlayerEntity))
+            return;
+        TPTeam team = TPTeam.getTeamByMember(getPlayerUUID(event.getPlayer()));
+        if (team != null)
+            team.playerOffline(getPlayerUUID(event.getPlayer()));
+    }
+
+    private static void playerOnline(PlayerEntity player) {
+        if (!(player instanceof ServerPlayerEntity))
+            return;
+        TPTeam team = TPTeam.getTeamByMember(getPlayerUUID(player));
+        if (team != null)
+            team.playerOnline((ServerPlayerEntity) player);
     }
 
     public static List<ServerPlayerEntity> getAllOnline(List<UUID> uuids) {
@@ -64,8 +126,15 @@ public class TeamProjectEBackport {
     }
 
     public static List<ServerPlayerEntity> getOnlineTeamMembers(UUID uuid, boolean includeOwner) {
-        TPTeam team = TPTeam.getOrCreateTeam(uuid);
-        return TeamProjectEBackport.getAllOnline(includeOwner ? team.getAll() : team.getMembers());
+        TPTeam team = TPTeam.getTeamByMember(uuid);
+        if (team == null)
+            //A player without a team is the owner of the one they would get
+            return TeamProjectEBackport.getAllOnline(includeOwner ? Collections.singletonList(uuid) : Collections.emptyList());
+        List<ServerPlayerEntity> online = team.getOnline();
+        if (includeOwner)
+            return online;
+        UUID owner = team.getOwner();
+        return online.stream().filter(player -> !getPlayerUUID(player).equals(owner)).collect(Collectors.toList());
     }
 
     public static UUID getPlayerUUID(PlayerEntity player) {
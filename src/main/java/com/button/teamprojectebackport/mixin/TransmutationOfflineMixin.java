@@ -1,38 +1,47 @@
 package com.button.teamprojectebackport.mixin;
 
-import com.button.teamprojectebackport.TeamKnowledgeProvider;
-import com.google.common.base.Preconditions;
+import com.button.teamprojectebackport.TPOfflineProviders;
 import moze_intel.projecte.api.capabilities.IKnowledgeProvider;
 import moze_intel.projecte.impl.TransmutationOffline;
-import net.minecraftforge.fml.common.thread.SidedThreadGroups;
-import org.spongepowered.asm.mixin.Final;
 import org.spongepowered.asm.mixin.Mixin;
-import org.spongepowered.asm.mixin.Shadow;
 import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
 
-import java.util.Map;
 import java.util.UUID;
 
 @Mixin(TransmutationOffline.class)
 public class TransmutationOfflineMixin {
 
-    @Shadow(remap = false)
-    @Final
-    private static Map<UUID, IKnowledgeProvider> cachedKnowledgeProviders;
-
     @Inject(
-            method = "cacheOfflineData",
+            method = "forPlayer",
             at = @At("HEAD"),
             cancellable = true,
             remap = false
     )
-    private static void onCacheOfflinePlayerData(UUID playerUUID, CallbackInfoReturnable<Boolean> cir) {
-        cir.cancel();
-        Preconditions.checkState(Thread.currentThread().getThreadGroup() == SidedThreadGroups.SERVER);
-        cachedKnowledgeProviders.put(playerUUID, new TeamKnowledgeProvider(playerUUID));
-        cir.setReturnValue(true);
+    private static void onForPlayer(UUID playerUUID, CallbackInfoReturnable<IKnowledgeProvider> cir) {
+        cir.setReturnValue(TPOfflineProviders.get(playerUUID));
+    }
+
+    @Inject(
+            method = "clear",
+            at = @At("HEAD"),
+            remap = false,
+            require = 0
+    )
+    private static void onClear(UUID playerUUID, CallbackInfo ci) {
+        TPOfflineProviders.invalidate(playerUUID);
+    }
+
+    @Inject(
+            method = "cleanAll",
+            at = @At("HEAD"),
+            remap = false,
+            require = 0
+    )
+    private static void onCleanAll(CallbackInfo ci) {
+        TPOfflineProviders.clear();
     }
 
 }